@@ -0,0 +1,214 @@
+/*
+    Copyright 2018 Mark P Jones, Portland State University
+
+    This file is part of tester.
+
+    tester is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    tester is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with tester.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package tester;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.stream.Stream;
+
+/**
+ * A content-addressed store for expected outputs. Instead of a separate file for each expected
+ * output, the store holds a single copy of each distinct output in a "blob" file, named by the
+ * SHA-256 hash of its contents, in the .blobs subfolder of the expected folder, together with a
+ * manifest (.manifest) that maps the path of each expected output (relative to the expected
+ * folder) to the hash of its contents. An ordinary file in the expected folder takes precedence
+ * over an entry in the manifest, so that expected outputs can still be created by hand. Blobs
+ * are never modified once they have been written, so the name of each blob is always the hash of
+ * its contents, and an exact comparison with an expected output in the store only needs to read
+ * the actual output (see same).
+ */
+class BlobStore {
+
+  /** The expected folder. */
+  private File root;
+
+  /** The folder that holds the blobs. */
+  private File blobs;
+
+  /** Maps the path of each expected output to the hash of its contents. */
+  private Store manifest;
+
+  /** The name of the manifest file in the expected folder. */
+  static final String MANIFEST = ".manifest";
+
+  /** The name of the folder in which blobs are stored. */
+  static final String BLOBS = ".blobs";
+
+  /** Default constructor. */
+  private BlobStore(File root) {
+    this.root = root;
+    this.blobs = new File(root, BLOBS);
+    this.manifest = Store.load(new File(root, MANIFEST));
+  }
+
+  /** Determine whether there is a store in the given expected folder. */
+  static boolean exists(File root) {
+    return new File(root, MANIFEST).isFile();
+  }
+
+  /** Open the store in the given expected folder (creating an empty store if necessary). */
+  static BlobStore open(File root) {
+    return new BlobStore(root);
+  }
+
+  /** Write the manifest back to its file, if it has changed. */
+  void save() {
+    manifest.save();
+  }
+
+  /** Return the key that is used in the manifest for an expected output file. */
+  private String key(File file) {
+    return root.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+  }
+
+  /** Return the blob file with the given hash. */
+  private File blob(String hash) {
+    return new File(new File(blobs, hash.substring(0, 2)), hash.substring(2));
+  }
+
+  /**
+   * Return the hash of the contents of an expected output file if it is held in the store, or
+   * null if it is stored as an ordinary file (or is missing).
+   */
+  String hash(File file) {
+    return file.exists() ? null : manifest.get(key(file));
+  }
+
+  /**
+   * Return the file that holds the contents of an expected output file: the file itself if it
+   * exists, or else the corresponding blob if there is one. The result should only be read.
+   */
+  File resolve(File file) {
+    String hash = hash(file);
+    return (hash == null) ? file : blob(hash);
+  }
+
+  /**
+   * Return the hash of the contents of the given file if it is a blob in this store (such as the
+   * result of resolve), or null if it is not.
+   */
+  private String blobHash(File file) {
+    File dir = file.getParentFile();
+    if (dir == null || !blobs.equals(dir.getParentFile())) {
+      return null;
+    }
+    return dir.getName() + file.getName();
+  }
+
+  /**
+   * Compare the contents of a file with an expected output, returning null if the expected output
+   * is not a blob in this store. Otherwise, the SHA-256 hash of the file is compared with the name
+   * of the blob, so the blob itself is never read.
+   */
+  Boolean same(File file, File expected) throws IOException {
+    String hash = blobHash(expected);
+    if (hash == null) {
+      return null;
+    }
+    return file.length() == expected.length() && hash.equals(sha256(file));
+  }
+
+  /**
+   * Set the contents of an expected output file to be the same as those of another file, adding
+   * a new blob to the store if necessary, and removing any ordinary file for the expected output.
+   */
+  void put(File file, File contents) throws IOException {
+    String hash = sha256(contents);
+    File blob = blob(hash);
+    if (!blob.isFile()) {
+      // Write a new blob to a temporary file and then move it into place:
+      File dir = blob.getParentFile();
+      if (!Test.makeDirectory(blobs) || !Test.makeDirectory(dir)) {
+        throw new IOException("Cannot access directory \"" + dir.getPath() + "\"");
+      }
+      Path tmp = Files.createTempFile(dir.toPath(), "new-", ".tmp");
+      try {
+        Files.copy(contents.toPath(), tmp, StandardCopyOption.REPLACE_EXISTING);
+        tmp.toFile().setReadOnly();
+        Files.move(tmp, blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(tmp);
+      }
+    }
+    manifest.put(key(file), hash);
+    Files.deleteIfExists(file.toPath());
+  }
+
+  /**
+   * Move every ordinary file in the expected folder in to the store, and then remove any blobs
+   * that are no longer listed in the manifest, returning the number of files that were moved.
+   */
+  int migrate() throws IOException {
+    ArrayList<File> files = new ArrayList<File>();
+    try (Stream<Path> paths = Files.walk(root.toPath())) {
+      paths
+          .filter(p -> Files.isRegularFile(p) && !p.startsWith(blobs.toPath()))
+          .filter(p -> !p.equals(new File(root, MANIFEST).toPath()))
+          .forEach(p -> files.add(p.toFile()));
+    }
+    for (File file : files) {
+      put(file, file);
+    }
+    HashSet<String> live = new HashSet<String>(manifest.values());
+    if (blobs.isDirectory()) {
+      try (Stream<Path> paths = Files.walk(blobs.toPath())) {
+        for (Object p : paths.filter(Files::isRegularFile).toArray()) {
+          Path path = (Path) p;
+          String hash = path.getParent().getFileName().toString() + path.getFileName();
+          if (!live.contains(hash)) {
+            Files.delete(path);
+          }
+        }
+      }
+    }
+    return files.size();
+  }
+
+  /** Size of the buffer that is used to hash files. */
+  private static final int BUFSIZE = 1 << 16;
+
+  /** Compute the SHA-256 hash of the contents of a file, as a string of hex digits. */
+  static String sha256(File file) throws IOException {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+    byte[] buf = new byte[BUFSIZE];
+    try (InputStream in = Files.newInputStream(file.toPath())) {
+      for (int n; (n = in.read(buf)) > 0; ) {
+        md.update(buf, 0, n);
+      }
+    }
+    StringBuilder hex = new StringBuilder();
+    for (byte b : md.digest()) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+}
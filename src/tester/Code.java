@@ -19,7 +19,18 @@
 package tester;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /** A test case that is described by a code fragment. */
 class Code extends TestCase {
@@ -27,35 +38,140 @@ class Code extends TestCase {
   /** File extension, including dot. */
   private String ext;
 
+  /**
+   * Holds the contents of the code fragment for this test when it is too long to be kept in memory
+   * as the context, or null if the context holds the code fragment.
+   */
+  private File body;
+
   /** Default constructor. */
-  Code(String name, String[] context, String cmd, String ext) {
-    super(name, context, cmd);
+  Code(String name, String[] context, File body, String cmd, String ext, Directives directives) {
+    super(name, context, cmd, directives);
+    this.body = body;
     this.ext = ext;
   }
 
+  /** Return the name of the source file for this test in the specified actual output folder. */
+  private File source(File actual) {
+    return new File(actual, name + ext);
+  }
+
+  /** Return the message that is displayed at the start of this test. */
+  String startMessage(File actual, String path) {
+    return "CodeTest: " + cmd + " " + source(actual);
+  }
+
+  /** Return a description of the command for this test, for use in failure reports. */
+  String describe(File actual) {
+    return cmd + " " + source(actual).getPath();
+  }
+
+  /** Display the code fragment for this test. */
+  protected void showContext(int flags) {
+    if (body == null) {
+      super.showContext(flags);
+    } else if ((flags & CONTEXT) == 0) {
+      header("context");
+      try {
+        display(body);
+      } catch (Exception e) {
+        println("Unable to display " + body);
+      }
+    }
+  }
+
+  /** Add the code fragment for this test to a message digest. */
+  protected void digestContext(MessageDigest md) throws Exception {
+    if (body == null) {
+      super.digestContext(md);
+    } else {
+      try (InputStream in = Files.newInputStream(body.toPath())) {
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+          md.update(buf, 0, n);
+        }
+      }
+    }
+  }
+
+  /**
+   * The source file that was written for this test by materialize, or null if the source file
+   * has not been written yet in this run.
+   */
+  private File written;
+
   /**
-   * Run this test using the specified parameters.
-   *
-   * @param expected is the folder where expected output files are stored.
-   * @param actual is the folder where actual output files are stored.
-   * @param path is the path name for this test case (for user display).
-   * @param nesting specifies the current nesting level (to determine indentation).
-   * @param flags specifies operating flags (RUNTESTS|INTERACT).
+   * Write the source files for the code tests in a set before any of them are run, writing
+   * several files in parallel. Files that already have the right contents are not written again,
+   * so that their modification times (and any build caches that depend on them) are preserved.
    */
-  void run(File expected, File actual, String path, int nesting, int flags) throws Exception {
-    path = extendPath(path);
+  static void materialize(Test[] tests, File actual) {
+    ArrayList<Code> codes = new ArrayList<Code>();
+    for (Test test : tests) {
+      if (test instanceof Code && ((Code) test).selected) {
+        codes.add((Code) test);
+      }
+    }
+    codes.parallelStream().forEach(code -> code.materialize(actual));
+  }
 
-    // Print message to indicate start of test:
-    File src = new File(actual, name + ext);
-    progress(flags, nesting, "CodeTest: " + cmd + " " + src);
+  /** Write the source file for this test, leaving any problems to be reported by prepare. */
+  private void materialize(File actual) {
+    File src = source(actual);
+    try {
+      writeSource(src);
+      written = src;
+    } catch (IOException e) {
+      written = null;
+    }
+  }
 
-    // Create the test file:
-    writeFile(src, context);
+  /** Write the source file for this test, unless it already has the right contents. */
+  private void writeSource(File src) throws IOException {
+    Path path = src.toPath();
+    if (body != null) {
+      if (!src.isFile() || !Compare.exact(body, src)) {
+        Files.copy(body.toPath(), path, StandardCopyOption.REPLACE_EXISTING);
+      }
+      return;
+    }
+    StringBuilder text = new StringBuilder();
+    for (String line : context) {
+      text.append(line).append(System.lineSeparator());
+    }
+    byte[] bytes = text.toString().getBytes(Charset.defaultCharset());
+    if (src.isFile()
+        && src.length() == bytes.length
+        && Arrays.equals(Files.readAllBytes(path), bytes)) {
+      return;
+    }
+    try (FileChannel out =
+        FileChannel.open(
+            path,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer buf = ByteBuffer.wrap(bytes);
+      while (buf.hasRemaining()) {
+        out.write(buf);
+      }
+    }
+  }
 
-    // Create and run test command:
-    ArrayList<String> cmds = new ArrayList();
+  /**
+   * Create the test file (unless materialize has already done so), and then build the command
+   * line for this test.
+   */
+  ArrayList<String> prepare(File actual) throws Exception {
+    File src = source(actual);
+    if (!src.equals(written)) {
+      writeSource(src);
+    }
+    written = null;
+    ArrayList<String> cmds = new ArrayList<String>();
     addArgs(cmds, cmd);
     cmds.add(src.getPath());
-    passed = execTest(cmds, cmd + " " + src.getPath(), expected, actual, path, nesting, flags);
+    return cmds;
   }
 }
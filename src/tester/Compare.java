@@ -0,0 +1,160 @@
+/*
+    Copyright 2018 Mark P Jones, Portland State University
+
+    This file is part of tester.
+
+    tester is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    tester is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with tester.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package tester;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Comparison of output files at the level of raw bytes. Files are read through a pair of direct
+ * buffers that are reused for every comparison on the same thread, so no characters are decoded,
+ * and no objects are allocated for individual lines.
+ */
+class Compare {
+
+  /** Size of the buffers that are used to read each file. */
+  private static final int BUFSIZE = 1 << 16;
+
+  /** A pair of reusable buffers for each thread. */
+  private static final ThreadLocal<ByteBuffer[]> buffers =
+      new ThreadLocal<ByteBuffer[]>() {
+        protected ByteBuffer[] initialValue() {
+          return new ByteBuffer[] {
+            ByteBuffer.allocateDirect(BUFSIZE), ByteBuffer.allocateDirect(BUFSIZE)
+          };
+        }
+      };
+
+  /** Open a file for reading. */
+  static FileChannel open(File file) throws IOException {
+    return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+  }
+
+  /**
+   * Read from a channel until the buffer is full or the end of the file is reached, returning the
+   * number of bytes that were read. The buffer is flipped, ready for reading, on return.
+   */
+  static int fill(FileChannel channel, ByteBuffer buf) throws IOException {
+    buf.clear();
+    while (buf.hasRemaining() && channel.read(buf) >= 0) {
+      // keep reading
+    }
+    buf.flip();
+    return buf.limit();
+  }
+
+  /** Determine whether two files have exactly the same contents. */
+  static boolean exact(File left, File right) throws IOException {
+    if (left.length() != right.length()) {
+      return false;
+    }
+    ByteBuffer[] bufs = buffers.get();
+    try (FileChannel l = open(left);
+        FileChannel r = open(right)) {
+      for (; ; ) {
+        int n = fill(l, bufs[0]);
+        if (n != fill(r, bufs[1]) || !bufs[0].equals(bufs[1])) {
+          return false;
+        } else if (n == 0) {
+          return true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Determine whether two (text) files contain the same sequence of lines, ignoring differences in
+   * line endings: a line may be terminated by "\n", "\r\n", or "\r", and the final line of a file
+   * need not be terminated at all.
+   */
+  static boolean lines(File left, File right) throws IOException {
+    if (left.length() == right.length() && exact(left, right)) {
+      return true;
+    }
+    ByteBuffer[] bufs = buffers.get();
+    try (FileChannel l = open(left);
+        FileChannel r = open(right)) {
+      Lines lsrc = new Lines(l, bufs[0]);
+      Lines rsrc = new Lines(r, bufs[1]);
+      int c;
+      do {
+        c = lsrc.next();
+        if (c != rsrc.next()) {
+          return false;
+        }
+      } while (c >= 0);
+      return true;
+    }
+  }
+
+  /**
+   * Reads the bytes of a file in a canonical form for line by line comparison, with every line
+   * terminated by a single '\n' character.
+   */
+  static class Lines {
+
+    /** The channel from which bytes are read. */
+    private FileChannel channel;
+
+    /** The buffer that holds bytes read from the channel. */
+    private ByteBuffer buf;
+
+    /** Default constructor. */
+    Lines(FileChannel channel, ByteBuffer buf) {
+      this.channel = channel;
+      this.buf = buf;
+      buf.clear().flip();
+    }
+
+    /** Records the last byte that was returned by next, or -1 if no bytes have been returned. */
+    private int last = (-1);
+
+    /** Set when the end of the input has been reached. */
+    private boolean eof = false;
+
+    /** Return the next byte from the input, or -1 at the end of the file. */
+    private int read() throws IOException {
+      if (!buf.hasRemaining() && (eof || fill(channel, buf) == 0)) {
+        eof = true;
+        return (-1);
+      }
+      return buf.get() & 0xff;
+    }
+
+    /** Return the next byte of the canonical form of the input, or -1 at the end. */
+    int next() throws IOException {
+      int c = read();
+      if (c == '\r') {
+        // Treat "\r\n" and a lone "\r" as a single '\n':
+        if (buf.hasRemaining() || (!eof && fill(channel, buf) > 0)) {
+          if (buf.get(buf.position()) == '\n') {
+            buf.get();
+          }
+        }
+        c = '\n';
+      } else if (c < 0 && last >= 0 && last != '\n') {
+        c = '\n'; // Add a terminator to an unterminated final line
+      }
+      return last = c;
+    }
+  }
+}
@@ -0,0 +1,591 @@
+/*
+    Copyright 2018 Mark P Jones, Portland State University
+
+    This file is part of tester.
+
+    tester is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    tester is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with tester.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package tester;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * Computes the differences between two text files, and displays them in the style of "diff -c"
+ * or "diff -u". Lines are compared using 64 bit hashes that are computed as each file is read, so
+ * only a hash and a file position are held in memory for each line; the text of a line is read
+ * back from the file when it is displayed. Differences are found using the linear space version
+ * of Myers' O(ND) algorithm, with a limit on the cost of very large edits.
+ */
+class Diff {
+
+  /** The maximum number of hunks that are displayed for a pair of files (zero for no limit). */
+  static int maxHunks = 0;
+
+  /** The number of unchanged lines that are displayed around each change. */
+  private static final int CONTEXT = 3;
+
+  /** The maximum number of lines that are read from each file. */
+  private static final int MAX_LINES = 1 << 21;
+
+  /** The lines of the first file. */
+  private Lines x;
+
+  /** The lines of the second file. */
+  private Lines y;
+
+  /** Marks the lines in the first file that are deleted. */
+  private boolean[] deleted;
+
+  /** Marks the lines in the second file that are inserted. */
+  private boolean[] inserted;
+
+  /**
+   * The hashes of the lines in each file that also appear in the other. Lines that only appear in
+   * one of the files must be part of a change, so they are left out of the search for a longest
+   * common subsequence, which can make it much cheaper.
+   */
+  private long[] xv;
+
+  private long[] yv;
+
+  /** The position in the original file of each of the lines in xv and yv. */
+  private int[] xmap;
+
+  private int[] ymap;
+
+  /** Marks the lines in xv and yv that are part of a change. */
+  private boolean[] xchanged;
+
+  private boolean[] ychanged;
+
+  /** The forward and backward vectors used to find a middle snake, indexed by diagonal. */
+  private int[] fd;
+
+  private int[] bd;
+
+  /** The offset that is added to a diagonal number to obtain an index into fd and bd. */
+  private int offset;
+
+  /** The maximum cost of a search for a middle snake before a heuristic split is used. */
+  private int tooExpensive;
+
+  /** Default constructor. */
+  private Diff(Lines x, Lines y) {
+    this.x = x;
+    this.y = y;
+    xmap = common(x, y);
+    ymap = common(y, x);
+    xv = new long[xmap.length];
+    for (int i = 0; i < xmap.length; i++) {
+      xv[i] = x.hash[xmap[i]];
+    }
+    yv = new long[ymap.length];
+    for (int j = 0; j < ymap.length; j++) {
+      yv[j] = y.hash[ymap[j]];
+    }
+    xchanged = new boolean[xv.length];
+    ychanged = new boolean[yv.length];
+    int diags = xv.length + yv.length + 3;
+    fd = new int[diags];
+    bd = new int[diags];
+    offset = yv.length + 1;
+    tooExpensive = 1;
+    for (int i = diags; i != 0; i >>= 2) {
+      tooExpensive <<= 1;
+    }
+    tooExpensive = Math.max(4096, tooExpensive);
+  }
+
+  /**
+   * Write the differences between two files to the given output, one line at a time, in unified
+   * format if the unified flag is set, or in context format otherwise. If the lines flag is set,
+   * then differences in line endings are ignored.
+   */
+  static void write(File from, File to, boolean unified, boolean lines, Consumer<String> out)
+      throws IOException {
+    Lines x = Lines.read(from, lines);
+    Lines y = Lines.read(to, lines);
+    Diff diff = new Diff(x, y);
+    diff.compare(0, diff.xv.length, 0, diff.yv.length);
+    diff.deleted = changed(x, diff.xmap, diff.xchanged);
+    diff.inserted = changed(y, diff.ymap, diff.ychanged);
+    ArrayList<int[]> hunks = diff.hunks();
+    if (hunks.isEmpty()) {
+      return;
+    }
+    out.accept((unified ? "--- " : "*** ") + label(from, unified));
+    out.accept((unified ? "+++ " : "--- ") + label(to, unified));
+    int shown = (maxHunks > 0) ? Math.min(maxHunks, hunks.size()) : hunks.size();
+    try (RandomAccessFile xin = new RandomAccessFile(from, "r");
+        RandomAccessFile yin = new RandomAccessFile(to, "r")) {
+      x.in = xin;
+      y.in = yin;
+      for (int h = 0; h < shown; h++) {
+        if (unified) {
+          diff.unified(hunks.get(h), out);
+        } else {
+          diff.context(hunks.get(h), out);
+        }
+      }
+    }
+    if (shown < hunks.size()) {
+      out.accept("[" + (hunks.size() - shown) + " more hunks not shown]");
+    }
+    if (x.truncated || y.truncated) {
+      out.accept("[only the first " + MAX_LINES + " lines of each file were compared]");
+    }
+  }
+
+  /** Return the label for a file in the header of a diff: its path and modification time. */
+  private static String label(File file, boolean unified) throws IOException {
+    DateTimeFormatter format =
+        unified
+            ? DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSSSSSSSS Z")
+            : DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.US);
+    return file.getPath()
+        + "\t"
+        + format.format(
+            Files.getLastModifiedTime(file.toPath()).toInstant().atZone(ZoneId.systemDefault()));
+  }
+
+  /** Records a hash and a file position for each line of a file. */
+  private static class Lines {
+
+    /** The number of lines. */
+    int count;
+
+    /** The hash of each line. */
+    long[] hash = new long[1024];
+
+    /** The position in the file where each line starts. */
+    long[] start = new long[1024];
+
+    /** The number of bytes in each line, not including its line terminator. */
+    int[] length = new int[1024];
+
+    /** Set if the last line of the file does not end with a newline. */
+    boolean unterminated;
+
+    /** Set if the file has more than MAX_LINES lines. */
+    boolean truncated;
+
+    /** Add a line to the array. */
+    void add(long h, long s, int l) {
+      if (count == hash.length) {
+        hash = Arrays.copyOf(hash, 2 * count);
+        start = Arrays.copyOf(start, 2 * count);
+        length = Arrays.copyOf(length, 2 * count);
+      }
+      hash[count] = h;
+      start[count] = s;
+      length[count] = l;
+      count++;
+    }
+
+    /** The initial value for an FNV-1a hash. */
+    private static final long BASIS = 0xcbf29ce484222325L;
+
+    /** The multiplier for an FNV-1a hash. */
+    private static final long PRIME = 0x100000001b3L;
+
+    /**
+     * Read the lines of a file. A carriage return at the end of a line is included in the hash
+     * (so that a change in line endings is reported as a change) unless the lines flag is set, in
+     * which case a carriage return on its own is also treated as a line terminator.
+     */
+    static Lines read(File file, boolean lines) throws IOException {
+      Lines result = new Lines();
+      try (InputStream in = new FileInputStream(file)) {
+        byte[] buf = new byte[1 << 16];
+        long pos = 0; // position of the next byte to be read
+        long s = 0; // start of the current line
+        long h = BASIS;
+        boolean cr = false; // set if the previous byte was a carriage return
+        int n;
+        while (result.count < MAX_LINES && (n = in.read(buf)) > 0) {
+          for (int i = 0; i < n && result.count < MAX_LINES; i++, pos++) {
+            byte b = buf[i];
+            if (cr) {
+              if (!lines) {
+                h = (h ^ '\r') * PRIME;
+              } else if (b != '\n') { // a carriage return on its own ends a line
+                result.add(h, s, (int) (pos - s - 1));
+                s = pos;
+                h = BASIS;
+              }
+            }
+            if (b == '\n') {
+              result.add(h, s, (int) (pos - s - (cr ? 1 : 0)));
+              s = pos + 1;
+              h = BASIS;
+              cr = false;
+            } else if (!(cr = (b == '\r'))) {
+              h = (h ^ (b & 0xff)) * PRIME;
+            }
+          }
+        }
+        if (result.count >= MAX_LINES) {
+          result.truncated = (pos < file.length());
+        } else if (pos > s) { // the last line does not end with a newline
+          if (!lines) {
+            h = (h ^ (cr ? '\r' : 0)) * PRIME + 1; // distinguish it from a complete line
+            result.unterminated = true;
+          }
+          result.add(h, s, (int) (pos - s - (cr ? 1 : 0)));
+        }
+      }
+      return result;
+    }
+
+    /** The file that the lines are read from when they are displayed. */
+    RandomAccessFile in;
+
+    /** A buffer holding part of the file, starting at position windowStart. */
+    private byte[] window = new byte[1 << 16];
+
+    private long windowStart = 0;
+
+    private int windowLength = 0;
+
+    /** Read the text of the ith line from the file. */
+    String text(int i) throws IOException {
+      long s = start[i];
+      int l = length[i];
+      if (s < windowStart || s + l > windowStart + windowLength) {
+        if (l > window.length) {
+          byte[] bytes = new byte[l];
+          in.seek(s);
+          in.readFully(bytes);
+          return new String(bytes, StandardCharsets.UTF_8);
+        }
+        in.seek(s);
+        windowStart = s;
+        windowLength = Math.max(0, in.read(window));
+      }
+      return new String(window, (int) (s - windowStart), l, StandardCharsets.UTF_8);
+    }
+  }
+
+  /** Return the positions of the lines in a that also appear in b. */
+  private static int[] common(Lines a, Lines b) {
+    long[] sorted = Arrays.copyOf(b.hash, b.count);
+    Arrays.sort(sorted);
+    int[] map = new int[a.count];
+    int n = 0;
+    for (int i = 0; i < a.count; i++) {
+      if (Arrays.binarySearch(sorted, a.hash[i]) >= 0) {
+        map[n++] = i;
+      }
+    }
+    return Arrays.copyOf(map, n);
+  }
+
+  /**
+   * Mark the lines of a file that are part of a change: those that do not appear in the other
+   * file, and those in the common lines that were marked by compare.
+   */
+  private static boolean[] changed(Lines lines, int[] map, boolean[] changed) {
+    boolean[] result = new boolean[lines.count];
+    Arrays.fill(result, true);
+    for (int i = 0; i < map.length; i++) {
+      result[map[i]] = changed[i];
+    }
+    return result;
+  }
+
+  /**
+   * Mark the lines in xv[xoff..xlim) and yv[yoff..ylim) that are not part of a common subsequence,
+   * which is a longest common subsequence unless the heuristic for expensive cases was used.
+   */
+  private void compare(int xoff, int xlim, int yoff, int ylim) {
+    while (xoff < xlim && yoff < ylim && xv[xoff] == yv[yoff]) {
+      xoff++;
+      yoff++;
+    }
+    while (xlim > xoff && ylim > yoff && xv[xlim - 1] == yv[ylim - 1]) {
+      xlim--;
+      ylim--;
+    }
+    if (xoff == xlim) {
+      Arrays.fill(ychanged, yoff, ylim, true);
+    } else if (yoff == ylim) {
+      Arrays.fill(xchanged, xoff, xlim, true);
+    } else {
+      long mid = middle(xoff, xlim, yoff, ylim);
+      int xmid = (int) (mid >> 32);
+      int ymid = (int) mid;
+      if ((xmid == xoff && ymid == yoff) || (xmid == xlim && ymid == ylim)) {
+        Arrays.fill(xchanged, xoff, xlim, true); // no progress; treat as a single change
+        Arrays.fill(ychanged, yoff, ylim, true);
+      } else {
+        compare(xoff, xmid, yoff, ymid);
+        compare(xmid, xlim, ymid, ylim);
+      }
+    }
+  }
+
+  /**
+   * Find the midpoint of a shortest edit script for xv[xoff..xlim) and yv[yoff..ylim), returning
+   * the x coordinate in the upper 32 bits of the result and the y coordinate in the lower 32 bits.
+   * If the search becomes too expensive, then a point that is as far along as possible is returned.
+   */
+  private long middle(int xoff, int xlim, int yoff, int ylim) {
+    int dmin = xoff - ylim;
+    int dmax = xlim - yoff;
+    int fmid = xoff - yoff;
+    int bmid = xlim - ylim;
+    int fmin = fmid;
+    int fmax = fmid;
+    int bmin = bmid;
+    int bmax = bmid;
+    boolean odd = ((fmid - bmid) & 1) != 0;
+    int o = offset;
+    fd[o + fmid] = xoff;
+    bd[o + bmid] = xlim;
+    for (int c = 1; ; c++) {
+      // Extend the forward search by one edit:
+      if (fmin > dmin) {
+        fd[o + --fmin - 1] = -1;
+      } else {
+        ++fmin;
+      }
+      if (fmax < dmax) {
+        fd[o + ++fmax + 1] = -1;
+      } else {
+        --fmax;
+      }
+      for (int d = fmax; d >= fmin; d -= 2) {
+        int tlo = fd[o + d - 1];
+        int thi = fd[o + d + 1];
+        int px = (tlo >= thi) ? tlo + 1 : thi;
+        int py = px - d;
+        while (px < xlim && py < ylim && xv[px] == yv[py]) {
+          px++;
+          py++;
+        }
+        fd[o + d] = px;
+        if (odd && bmin <= d && d <= bmax && bd[o + d] <= px) {
+          return ((long) px << 32) | (py & 0xffffffffL);
+        }
+      }
+
+      // Extend the backward search by one edit:
+      if (bmin > dmin) {
+        bd[o + --bmin - 1] = Integer.MAX_VALUE;
+      } else {
+        ++bmin;
+      }
+      if (bmax < dmax) {
+        bd[o + ++bmax + 1] = Integer.MAX_VALUE;
+      } else {
+        --bmax;
+      }
+      for (int d = bmax; d >= bmin; d -= 2) {
+        int tlo = bd[o + d - 1];
+        int thi = bd[o + d + 1];
+        int px = (tlo < thi) ? tlo : thi - 1;
+        int py = px - d;
+        while (px > xoff && py > yoff && xv[px - 1] == yv[py - 1]) {
+          px--;
+          py--;
+        }
+        bd[o + d] = px;
+        if (!odd && fmin <= d && d <= fmax && px <= fd[o + d]) {
+          return ((long) px << 32) | (py & 0xffffffffL);
+        }
+      }
+
+      // If the search is too expensive, use the furthest point reached in either direction:
+      if (c >= tooExpensive) {
+        int fxybest = -1;
+        int fxbest = xoff;
+        for (int d = fmax; d >= fmin; d -= 2) {
+          int px = Math.min(fd[o + d], xlim);
+          int py = px - d;
+          if (ylim < py) {
+            px = ylim + d;
+            py = ylim;
+          }
+          if (fxybest < px + py) {
+            fxybest = px + py;
+            fxbest = px;
+          }
+        }
+        int bxybest = Integer.MAX_VALUE;
+        int bxbest = xlim;
+        for (int d = bmax; d >= bmin; d -= 2) {
+          int px = Math.max(xoff, bd[o + d]);
+          int py = px - d;
+          if (py < yoff) {
+            px = yoff + d;
+            py = yoff;
+          }
+          if (px + py < bxybest) {
+            bxybest = px + py;
+            bxbest = px;
+          }
+        }
+        if ((xlim + ylim) - bxybest < fxybest - (xoff + yoff)) {
+          return ((long) fxbest << 32) | ((fxybest - fxbest) & 0xffffffffL);
+        } else {
+          return ((long) bxbest << 32) | ((bxybest - bxbest) & 0xffffffffL);
+        }
+      }
+    }
+  }
+
+  /**
+   * Group the changes into hunks, each of which is described by an array {x0, x1, y0, y1, g0, g1}
+   * giving the range of lines in each file that it covers (including context) and the range of
+   * changes (in the list of changes) that it includes. Each change is an array {x0, x1, y0, y1}
+   * giving the lines in each file that it replaces.
+   */
+  private ArrayList<int[]> hunks() {
+    changes = new ArrayList<int[]>();
+    int i = 0;
+    int j = 0;
+    while (i < x.count || j < y.count) {
+      if ((i < x.count && deleted[i]) || (j < y.count && inserted[j])) {
+        int i0 = i;
+        int j0 = j;
+        while ((i < x.count && deleted[i]) || (j < y.count && inserted[j])) {
+          while (i < x.count && deleted[i]) {
+            i++;
+          }
+          while (j < y.count && inserted[j]) {
+            j++;
+          }
+        }
+        changes.add(new int[] {i0, i, j0, j});
+      } else {
+        i++;
+        j++;
+      }
+    }
+    ArrayList<int[]> hunks = new ArrayList<int[]>();
+    for (int g = 0; g < changes.size(); ) {
+      int[] first = changes.get(g);
+      int last = g;
+      while (last + 1 < changes.size()
+          && changes.get(last + 1)[0] - changes.get(last)[1] <= 2 * CONTEXT) {
+        last++;
+      }
+      int[] end = changes.get(last);
+      int x0 = Math.max(0, first[0] - CONTEXT);
+      int y0 = first[2] - (first[0] - x0);
+      int x1 = Math.min(x.count, end[1] + CONTEXT);
+      int y1 = end[3] + (x1 - end[1]);
+      hunks.add(new int[] {x0, x1, y0, y1, g, last + 1});
+      g = last + 1;
+    }
+    return hunks;
+  }
+
+  /** The list of changes, computed by hunks(). */
+  private ArrayList<int[]> changes;
+
+  /** Display a hunk in unified format. */
+  private void unified(int[] hunk, Consumer<String> out) throws IOException {
+    out.accept(
+        "@@ -" + unifiedRange(hunk[0], hunk[1]) + " +" + unifiedRange(hunk[2], hunk[3]) + " @@");
+    int i = hunk[0];
+    int j = hunk[2];
+    for (int g = hunk[4]; g < hunk[5]; g++) {
+      int[] change = changes.get(g);
+      for (; i < change[0]; i++, j++) {
+        line(out, " ", x, i);
+      }
+      for (; i < change[1]; i++) {
+        line(out, "-", x, i);
+      }
+      for (; j < change[3]; j++) {
+        line(out, "+", y, j);
+      }
+    }
+    for (; i < hunk[1]; i++, j++) {
+      line(out, " ", x, i);
+    }
+  }
+
+  /** Display a hunk in context format. */
+  private void context(int[] hunk, Consumer<String> out) throws IOException {
+    out.accept("***************");
+    out.accept("*** " + contextRange(hunk[0], hunk[1]) + " ****");
+    contextLines(out, hunk, x, 0, "- ");
+    out.accept("--- " + contextRange(hunk[2], hunk[3]) + " ----");
+    contextLines(out, hunk, y, 2, "+ ");
+  }
+
+  /**
+   * Display the lines from one side (k=0 for the first file, k=2 for the second) of a hunk in
+   * context format, unless there are no changes on that side, using the given prefix for lines
+   * that only appear on that side.
+   */
+  private void contextLines(Consumer<String> out, int[] hunk, Lines lines, int k, String only)
+      throws IOException {
+    boolean any = false;
+    for (int g = hunk[4]; g < hunk[5]; g++) {
+      any |= changes.get(g)[k] < changes.get(g)[k + 1];
+    }
+    if (!any) {
+      return;
+    }
+    int i = hunk[k];
+    for (int g = hunk[4]; g < hunk[5]; g++) {
+      int[] change = changes.get(g);
+      boolean both = change[0] < change[1] && change[2] < change[3];
+      for (; i < change[k]; i++) {
+        line(out, "  ", lines, i);
+      }
+      for (; i < change[k + 1]; i++) {
+        line(out, both ? "! " : only, lines, i);
+      }
+    }
+    for (; i < hunk[k + 1]; i++) {
+      line(out, "  ", lines, i);
+    }
+  }
+
+  /** Display a single line, with a prefix that indicates whether it has changed. */
+  private static void line(Consumer<String> out, String prefix, Lines lines, int i)
+      throws IOException {
+    out.accept(prefix + lines.text(i));
+    if (lines.unterminated && i == lines.count - 1) {
+      out.accept("\\ No newline at end of file");
+    }
+  }
+
+  /** Format the range of lines [a, b) for a unified diff header. */
+  private static String unifiedRange(int a, int b) {
+    int n = b - a;
+    return (n == 1) ? Integer.toString(a + 1) : (n == 0 ? a : a + 1) + "," + n;
+  }
+
+  /** Format the range of lines [a, b) for a context diff header. */
+  private static String contextRange(int a, int b) {
+    return (b - a <= 1) ? Integer.toString(b) : (a + 1) + "," + b;
+  }
+}
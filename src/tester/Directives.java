@@ -0,0 +1,142 @@
+/*
+    Copyright 2018 Mark P Jones, Portland State University
+
+    This file is part of tester.
+
+    tester is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    tester is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with tester.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package tester;
+
+import java.util.ArrayList;
+
+/**
+ * Settings for test cases that are specified by directive lines in a tests file. Directives that
+ * appear at the start of a tests file apply to all of the test cases in that file (and in any
+ * nested test sets), while directives that appear immediately after the first line of an exec: or
+ * java: test case apply only to that test. (The body of a code test is never read as directives.)
+ */
+class Directives {
+
+  /** Files (typically inputs and binaries under test) that the test depends on. */
+  ArrayList<String> inputs = new ArrayList<String>();
+
+  /** Filters that are applied to each line of the outputs of the test. */
+  ArrayList<Filter> filters = new ArrayList<Filter>();
+
+  /** Time limit for running the test, in milliseconds (or -1 to use the global default). */
+  long timeout = (-1);
+
+  /** Limit on the size of each output of the test, in bytes (or -1 to use the global default). */
+  long maxOutput = (-1);
+
+  /** Create a new set of directives with no settings. */
+  Directives() {}
+
+  /** Create a new set of directives that inherits all of the settings of another. */
+  Directives(Directives parent) {
+    inputs.addAll(parent.inputs);
+    filters.addAll(parent.filters);
+    timeout = parent.timeout;
+    maxOutput = parent.maxOutput;
+  }
+
+  /** The names of all of the directives that can be used in a tests file. */
+  static final String[] names = {"inputs:", "filter:", "timeout:", "max-output:"};
+
+  /**
+   * Apply the directive on the given line (which must begin with one of the names listed above),
+   * returning an error message if the directive is not valid, or null if there are no errors.
+   */
+  String apply(String line) {
+    if (line.startsWith("inputs:")) {
+      Test.addArgs(inputs, line.substring(7));
+    } else if (line.startsWith("filter:")) {
+      try {
+        filters.add(Filter.compile(line.substring(7).trim()));
+      } catch (IllegalArgumentException e) {
+        return "Invalid filter (" + e.getMessage() + ")";
+      }
+    } else if (line.startsWith("timeout:")) {
+      timeout = parseSeconds(line.substring(8).trim());
+      if (timeout < 0) {
+        return "Invalid timeout (expected a number of seconds)";
+      }
+    } else if (line.startsWith("max-output:")) {
+      maxOutput = parseSize(line.substring(11).trim());
+      if (maxOutput < 0) {
+        return "Invalid output limit (expected a number of bytes)";
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Parse a (non-negative, possibly fractional) number of seconds, returning the equivalent
+   * number of milliseconds, or -1 if the string is not valid.
+   */
+  static long parseSeconds(String str) {
+    try {
+      double seconds = Double.parseDouble(str);
+      return (seconds >= 0 && seconds < Long.MAX_VALUE / 1000) ? Math.round(seconds * 1000) : (-1);
+    } catch (NumberFormatException e) {
+      return (-1);
+    }
+  }
+
+  /**
+   * Parse a (non-negative) number of bytes, with an optional suffix of K, M, or G for multiples
+   * of 1024, 1024*1024, or 1024*1024*1024, returning -1 if the string is not valid.
+   */
+  static long parseSize(String str) {
+    int shift = 0;
+    if (str.length() > 0) {
+      switch (Character.toUpperCase(str.charAt(str.length() - 1))) {
+        case 'K':
+          shift = 10;
+          break;
+        case 'M':
+          shift = 20;
+          break;
+        case 'G':
+          shift = 30;
+          break;
+      }
+    }
+    try {
+      long n = Long.parseLong((shift == 0) ? str : str.substring(0, str.length() - 1));
+      return (n >= 0 && n <= (Long.MAX_VALUE >> shift)) ? (n << shift) : (-1);
+    } catch (NumberFormatException e) {
+      return (-1);
+    }
+  }
+
+  /**
+   * Determine whether the given line is an escaped directive: a backslash followed by one of the
+   * names listed above. In a position where a directive could appear, such a line is read as a
+   * line of text, without the backslash.
+   */
+  static boolean isEscaped(String line) {
+    return line.startsWith("\\") && isDirective(line.substring(1));
+  }
+
+  /** Determine whether the given line is a directive. */
+  static boolean isDirective(String line) {
+    for (int i = 0; i < names.length; i++) {
+      if (line.startsWith(names[i])) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -25,28 +25,24 @@ import java.util.ArrayList;
 class Exec extends TestCase {
 
   /** Default constructor. */
-  Exec(String name, String[] context, String cmd) {
-    super(name, context, cmd);
+  Exec(String name, String[] context, String cmd, Directives directives) {
+    super(name, context, cmd, directives);
   }
 
-  /**
-   * Run this test using the specified parameters.
-   *
-   * @param expected is the folder where expected output files are stored.
-   * @param actual is the folder where actual output files are stored.
-   * @param path is the path name for this test case (for user display).
-   * @param nesting specifies the current nesting level (to determine indentation).
-   * @param flags specifies operating flags (RUNTESTS|INTERACT).
-   */
-  void run(File expected, File actual, String path, int nesting, int flags) throws Exception {
-    path = extendPath(path);
-
-    // Print message to indicate start of test:
-    progress(flags, nesting, "Exec " + path + ": " + cmd);
-
-    // Create and run test command:
-    ArrayList<String> cmds = new ArrayList();
+  /** Return the message that is displayed at the start of this test. */
+  String startMessage(File actual, String path) {
+    return "Exec " + path + ": " + cmd;
+  }
+
+  /** Return a description of the command for this test, for use in failure reports. */
+  String describe(File actual) {
+    return cmd;
+  }
+
+  /** Build the command line for this test. */
+  ArrayList<String> prepare(File actual) {
+    ArrayList<String> cmds = new ArrayList<String>();
     addArgs(cmds, cmd);
-    passed = execTest(cmds, cmd, expected, actual, path, nesting, flags);
+    return cmds;
   }
 }
@@ -20,13 +20,33 @@ package tester;
 
 class FailureSummary {
 
+  /** Indicates a test that ran to completion but did not produce the expected results. */
+  public static final int FAILED = 0;
+
+  /** Indicates a test that was stopped because it did not finish within its time limit. */
+  public static final int TIMEOUT = 1;
+
+  /** Return the label that is used to describe a failure of the given kind. */
+  public static String label(int kind) {
+    return (kind == TIMEOUT) ? "TIMEOUT" : "FAILED";
+  }
+
   public String text;
 
   public String context;
 
+  /** The kind of failure (FAILED or TIMEOUT). */
+  public int kind;
+
   /** Default constructor. */
   FailureSummary(String text, String context) {
+    this(text, context, FAILED);
+  }
+
+  /** Construct a summary for a failure of a specific kind. */
+  FailureSummary(String text, String context, int kind) {
     this.text = text;
     this.context = context;
+    this.kind = kind;
   }
 }
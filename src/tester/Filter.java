@@ -0,0 +1,134 @@
+/*
+    Copyright 2018 Mark P Jones, Portland State University
+
+    This file is part of tester.
+
+    tester is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    tester is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with tester.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package tester;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A regular expression replacement, written in the style of a sed substitution command
+ * (s/regex/replacement/), that is applied to each line of the outputs of a test before they are
+ * compared with the expected outputs. Any character can be used in place of the '/' delimiter,
+ * and can be included in the regex or replacement by preceding it with a backslash. The regex and
+ * replacement use the syntax of java.util.regex; every match in each line is replaced, and groups
+ * in the regex can be referenced as $1, $2, ... in the replacement.
+ */
+class Filter {
+
+  /** The text of the substitution command that defines this filter. */
+  final String spec;
+
+  /** The compiled regular expression. */
+  private Pattern pattern;
+
+  /** The replacement for each match of the regular expression. */
+  private String replacement;
+
+  /** Default constructor. */
+  private Filter(String spec, Pattern pattern, String replacement) {
+    this.spec = spec;
+    this.pattern = pattern;
+    this.replacement = replacement;
+  }
+
+  /**
+   * Filters that have already been compiled, indexed by their specification, so that a filter
+   * that is used in many tests (or many times in a tests file) is only compiled once.
+   */
+  private static ConcurrentHashMap<String, Filter> cache = new ConcurrentHashMap<String, Filter>();
+
+  /**
+   * Return the filter for the given substitution command, throwing an IllegalArgumentException
+   * with a description of the problem if the command is not valid.
+   */
+  static Filter compile(String spec) {
+    Filter filter = cache.get(spec);
+    if (filter == null) {
+      if (spec.length() < 2 || spec.charAt(0) != 's') {
+        throw new IllegalArgumentException("expected s/regex/replacement/");
+      }
+      char delim = spec.charAt(1);
+      StringBuilder regex = new StringBuilder();
+      StringBuilder repl = new StringBuilder();
+      int i = field(spec, 2, delim, regex);
+      int j = (i < spec.length()) ? field(spec, i + 1, delim, repl) : i;
+      if (j != spec.length() - 1) {
+        throw new IllegalArgumentException(
+            "expected s" + delim + "regex" + delim + "replacement" + delim);
+      }
+      Pattern pattern;
+      try {
+        pattern = Pattern.compile(regex.toString());
+      } catch (PatternSyntaxException e) {
+        throw new IllegalArgumentException(e.getDescription());
+      }
+      checkReplacement(repl, pattern.matcher("").groupCount());
+      filter = new Filter(spec, pattern, repl.toString());
+      cache.put(spec, filter);
+    }
+    return filter;
+  }
+
+  /**
+   * Read a field of a substitution command, starting at position i and ending at the next
+   * unescaped delimiter, returning the position of that delimiter (or the length of the spec if
+   * there is no delimiter).
+   */
+  private static int field(String spec, int i, char delim, StringBuilder buf) {
+    for (; i < spec.length(); i++) {
+      char c = spec.charAt(i);
+      if (c == delim) {
+        break;
+      } else if (c == '\\' && i + 1 < spec.length() && spec.charAt(i + 1) == delim) {
+        c = spec.charAt(++i); // an escaped delimiter
+      }
+      buf.append(c);
+    }
+    return i;
+  }
+
+  /**
+   * Check that a replacement string is valid for a regex with the given number of groups, so that
+   * errors are reported when the tests file is read rather than when the filter is applied.
+   */
+  private static void checkReplacement(CharSequence repl, int groups) {
+    for (int i = 0; i < repl.length(); i++) {
+      char c = repl.charAt(i);
+      if (c == '\\' && ++i >= repl.length()) {
+        throw new IllegalArgumentException("replacement ends with a backslash");
+      } else if (c == '$') {
+        if (++i < repl.length() && repl.charAt(i) == '{') {
+          continue; // named groups are checked when the filter is applied
+        }
+        if (i >= repl.length() || !Character.isDigit(repl.charAt(i))) {
+          throw new IllegalArgumentException("expected a group number after $");
+        }
+        if (repl.charAt(i) - '0' > groups) {
+          throw new IllegalArgumentException("no group " + repl.charAt(i) + " in regex");
+        }
+      }
+    }
+  }
+
+  /** Apply this filter to a single line of text. */
+  String apply(String line) {
+    return pattern.matcher(line).replaceAll(replacement);
+  }
+}
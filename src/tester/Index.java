@@ -0,0 +1,243 @@
+/*
+    Copyright 2018 Mark P Jones, Portland State University
+
+    This file is part of tester.
+
+    tester is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    tester is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with tester.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package tester;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+/**
+ * A persistent index that records the size, modification time, and a hash of the contents of
+ * output files that tester has found to be the same. If neither of the files in a comparison has
+ * changed since it was last hashed, then the comparison can be decided from the index alone,
+ * without reading either file.
+ */
+class Index extends StateFile {
+
+  /** Maps the path of each indexed file to the corresponding entry. */
+  private Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+  /** Default constructor. */
+  private Index(File file) {
+    super(file);
+  }
+
+  /** Describes the contents of a single file at the time that it was hashed. */
+  private static class Entry {
+
+    /** Set if the hash was computed for the canonical form used by line by line comparison. */
+    boolean lines;
+
+    /** The size of the file, in bytes. */
+    long size;
+
+    /** The modification time of the file, in nanoseconds. */
+    long modified;
+
+    /** The time at which the hash was computed, in nanoseconds. */
+    long hashed;
+
+    /** A 64 bit hash of the file contents. */
+    long hash;
+
+    /** Default constructor. */
+    Entry(boolean lines, long size, long modified, long hashed, long hash) {
+      this.lines = lines;
+      this.size = size;
+      this.modified = modified;
+      this.hashed = hashed;
+      this.hash = hash;
+    }
+  }
+
+  /** Read the index from the specified file, returning an empty index if it does not exist. */
+  static Index load(File file) {
+    Index index = new Index(file);
+    index.load();
+    return index;
+  }
+
+  /** Read the index from the given file. */
+  protected void read(File file) throws IOException {
+    try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split(" ", 6);
+        if (fields.length == 6) {
+          entries.put(
+              fields[5],
+              new Entry(
+                  fields[0].equals("l"),
+                  Long.parseLong(fields[1]),
+                  Long.parseLong(fields[2]),
+                  Long.parseLong(fields[3]),
+                  Long.parseUnsignedLong(fields[4], 16)));
+        }
+      }
+    }
+  }
+
+  /** Discard all of the entries in the index. */
+  protected void clear() {
+    entries.clear();
+  }
+
+  /** Write the index to the given file, dropping entries for files that no longer exist. */
+  protected void write(File file) throws IOException {
+    try (PrintWriter out = new PrintWriter(file)) {
+      for (Map.Entry<String, Entry> e : entries.entrySet()) {
+        if (new File(e.getKey()).isFile()) {
+          Entry entry = e.getValue();
+          out.println(
+              (entry.lines ? "l " : "b ")
+                  + entry.size
+                  + " "
+                  + entry.modified
+                  + " "
+                  + entry.hashed
+                  + " "
+                  + Long.toHexString(entry.hash)
+                  + " "
+                  + e.getKey());
+        }
+      }
+    }
+  }
+
+  /**
+   * Compare the content of two files for equality, using the hashes recorded in the index if
+   * neither file has changed since it was hashed, and comparing the files directly (stopping at
+   * the first difference) otherwise. The comparison ignores differences in line endings if the
+   * LINES flag is set. After a direct comparison finds that the files are the same, hashes are
+   * recorded for any files that are not too recently modified to be trusted.
+   */
+  boolean same(File left, File right, int flags) throws IOException {
+    boolean lines = (flags & Test.LINES) != 0;
+    long lsize = left.length();
+    long rsize = right.length();
+    if (!lines && lsize != rsize) {
+      return false;
+    }
+    long lmodified = modified(left);
+    long rmodified = modified(right);
+    Entry l = lookup(left, lsize, lmodified, lines);
+    Entry r = lookup(right, rsize, rmodified, lines);
+    if (l != null && r != null) {
+      return l.hash == r.hash;
+    }
+    boolean same = lines ? Compare.lines(left, right) : Compare.exact(left, right);
+    if (same) {
+      if (l == null) {
+        record(left, lsize, lmodified, lines);
+      }
+      if (r == null) {
+        record(right, rsize, rmodified, lines);
+      }
+    }
+    return same;
+  }
+
+  /** Return the modification time of a file, in nanoseconds. */
+  private static long modified(File file) throws IOException {
+    return Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS);
+  }
+
+  /** Find an up to date entry for the specified file, or return null if there is none. */
+  private Entry lookup(File file, long size, long modified, boolean lines) {
+    Entry entry = entries.get(file.getPath());
+    if (entry != null
+        && entry.lines == lines
+        && entry.size == size
+        && entry.modified == modified
+        && trusted(modified, entry.hashed, TimeUnit.NANOSECONDS)) {
+      return entry;
+    }
+    return null;
+  }
+
+  /** Hash the specified file and record it in the index, unless it was modified too recently. */
+  private void record(File file, long size, long modified, boolean lines) throws IOException {
+    long hashed = System.currentTimeMillis() * 1000000L;
+    if (trusted(modified, hashed, TimeUnit.NANOSECONDS)) {
+      entries.put(file.getPath(), new Entry(lines, size, modified, hashed, hash(file, lines)));
+      changed = true;
+    }
+  }
+
+  /** Size of the buffers that are used to hash files. */
+  private static final int BUFSIZE = 1 << 16;
+
+  /** A pair of reusable buffers for each thread. */
+  private static final ThreadLocal<ByteBuffer[]> buffers =
+      new ThreadLocal<ByteBuffer[]>() {
+        protected ByteBuffer[] initialValue() {
+          return new ByteBuffer[] {
+            ByteBuffer.allocateDirect(BUFSIZE), ByteBuffer.allocateDirect(BUFSIZE)
+          };
+        }
+      };
+
+  /**
+   * Compute a 64 bit hash of a file, combining two independent 32 bit checksums. If the lines
+   * flag is set, then the hash is computed for the canonical form that is used for line by line
+   * comparisons.
+   */
+  static long hash(File file, boolean lines) throws IOException {
+    CRC32C crc32c = new CRC32C();
+    CRC32 crc32 = new CRC32();
+    ByteBuffer[] bufs = buffers.get();
+    ByteBuffer buf = bufs[0];
+    try (FileChannel channel = Compare.open(file)) {
+      if (lines) {
+        Compare.Lines src = new Compare.Lines(channel, bufs[1]);
+        int c = src.next();
+        while (c >= 0) {
+          buf.clear();
+          for (; c >= 0 && buf.hasRemaining(); c = src.next()) {
+            buf.put((byte) c);
+          }
+          buf.flip();
+          update(buf, crc32c, crc32);
+        }
+      } else {
+        while (Compare.fill(channel, buf) > 0) {
+          update(buf, crc32c, crc32);
+        }
+      }
+    }
+    return (crc32c.getValue() << 32) | crc32.getValue();
+  }
+
+  /** Add the (remaining) contents of a buffer to each of the checksums. */
+  private static void update(ByteBuffer buf, CRC32C crc32c, CRC32 crc32) {
+    crc32c.update(buf);
+    buf.rewind();
+    crc32.update(buf);
+  }
+}
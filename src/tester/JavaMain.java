@@ -0,0 +1,166 @@
+/*
+    Copyright 2018 Mark P Jones, Portland State University
+
+    This file is part of tester.
+
+    tester is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    tester is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with tester.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package tester;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/**
+ * A test case that runs the main method of a Java class, described by the arguments that would
+ * follow "java" in an equivalent exec: command (a class path, the main class, and its arguments).
+ * Instead of starting a new JVM for each test, the program is run in one of a pool of worker JVMs
+ * (see WorkerPool), which produces the same outputs without the cost of JVM startup. Commands that
+ * use options other than a class path, and tests that are run when the pool is disabled (or a
+ * worker cannot be used), are run in a new JVM, exactly as for an exec: test.
+ */
+class JavaMain extends TestCase {
+
+  /** Default constructor. */
+  JavaMain(String name, String[] context, String cmd, Directives directives) {
+    super(name, context, cmd, directives);
+  }
+
+  /** Return the message that is displayed at the start of this test. */
+  String startMessage(File actual, String path) {
+    return "Java " + path + ": " + cmd;
+  }
+
+  /** Return a description of the command for this test, for use in failure reports. */
+  String describe(File actual) {
+    return "java " + cmd;
+  }
+
+  /** Build the command line for running this test in a new JVM. */
+  ArrayList<String> prepare(File actual) {
+    ArrayList<String> cmds = new ArrayList<String>();
+    cmds.add("java");
+    addArgs(cmds, cmd);
+    return cmds;
+  }
+
+  /**
+   * Run this test in a worker JVM if possible, or else in a new JVM. Filters are applied (and,
+   * with the EARLY flag, the outputs are compared) after the run, rather than while it is running.
+   */
+  protected boolean runCommand(
+      ArrayList<String> cmds,
+      File expectedOut,
+      File expectedErr,
+      File actualOut,
+      File actualErr,
+      int flags)
+      throws Exception {
+    // Find the class path, main class, and arguments on the command line:
+    String classpath = "";
+    int i = 1;
+    for (; i < cmds.size() && cmds.get(i).startsWith("-"); i++) {
+      String option = cmds.get(i);
+      if ((option.equals("-cp") || option.equals("-classpath") || option.equals("--class-path"))
+          && i + 1 < cmds.size()) {
+        classpath = cmds.get(++i);
+      } else if (option.startsWith("--class-path=")) {
+        classpath = option.substring(13);
+      } else {
+        break; // any other option requires a new JVM
+      }
+    }
+    WorkerPool.Handle worker = null;
+    if (WorkerPool.enabled && i < cmds.size() && !cmds.get(i).startsWith("-")) {
+      worker = WorkerPool.acquire();
+    }
+    if (worker == null) {
+      return super.runCommand(cmds, expectedOut, expectedErr, actualOut, actualErr, flags);
+    }
+
+    // Remove old outputs first, in case they are links that are shared with other tests:
+    Files.deleteIfExists(actualOut.toPath());
+    Files.deleteIfExists(actualErr.toPath());
+    boolean filtered = !directives.filters.isEmpty();
+    File rawOut = filtered ? new File(actualOut.getPath() + ".raw") : actualOut;
+    File rawErr = filtered ? new File(actualErr.getPath() + ".raw") : actualErr;
+    long limit = outputLimit();
+    usage = new Usage();
+    long start = System.nanoTime();
+    running.add(worker.process);
+    if (stopped && running.remove(worker.process)) {
+      kill(worker.process); // testing was stopped while this test was starting
+    }
+    int result =
+        worker.run(
+            classpath,
+            cmds.get(i),
+            cmds.subList(i + 1, cmds.size()),
+            rawOut,
+            rawErr,
+            limit,
+            timeLimit());
+    usage.wall = (System.nanoTime() - start) / 1000000;
+    if (!running.remove(worker.process) && result != WorkerPool.FINISHED) {
+      cancelled = true; // the worker was killed because testing was stopped
+      return false;
+    }
+    switch (result) {
+      case WorkerPool.TIMEOUT:
+        timedOut = true;
+        return false;
+      case WorkerPool.OVERFLOWED:
+        overflowed = true;
+        return false;
+      case WorkerPool.LOST:
+        return super.runCommand(cmds, expectedOut, expectedErr, actualOut, actualErr, flags);
+      default:
+        break;
+    }
+    if (!filtered) {
+      return true;
+    }
+
+    // Apply filters to the captured outputs:
+    boolean early = (flags & EARLY) != 0 && expectedOut.isFile() && expectedErr.isFile();
+    boolean lines = (flags & LINES) != 0;
+    Tee outTee =
+        new Tee(
+            new FileInputStream(rawOut),
+            actualOut,
+            limit,
+            directives.filters,
+            early ? expectedOut : null,
+            lines,
+            null,
+            null);
+    Tee errTee =
+        new Tee(
+            new FileInputStream(rawErr),
+            actualErr,
+            limit,
+            directives.filters,
+            early ? expectedErr : null,
+            lines,
+            null,
+            null);
+    outSame = outTee.call();
+    errSame = errTee.call();
+    Files.delete(rawOut.toPath());
+    Files.delete(rawErr.toPath());
+    overflowed = outTee.overflowed() || errTee.overflowed();
+    return !overflowed && !early;
+  }
+}
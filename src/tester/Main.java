@@ -18,7 +18,15 @@
 */
 package tester;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 public class Main {
 
@@ -33,17 +41,163 @@ public class Main {
       System.out.println("         -f     do not print test failed messages");
       System.out.println("         -s     do not print test set summaries");
       System.out.println("         -t     display test tree summary at conclusion");
+      System.out.println("         -j n   run up to n tests in parallel (default: number of cores)");
+      System.out.println("         -o     report test results in order of completion");
+      System.out.println("         -l     compare outputs line by line, ignoring line endings");
+      System.out.println("         -u     run tests whose commands or inputs have changed (implies -r)");
+      System.out.println("         -T s   stop any test that runs for more than s seconds");
+      System.out.println("         -m     measure resources used by each test (see -t)");
+      System.out.println("         -d     write differences for failing tests to .diff files");
+      System.out.println("         --unified        display differences in unified format");
+      System.out.println("         --max-hunks n    display at most n hunks of differences per file");
+      System.out.println("         --shard i/n      run only the ith of n shards of each test set");
+      System.out.println("         --fail-fast      stop testing after the first failure");
+      System.out.println("         --max-failures n stop testing after n failures");
+      System.out.println("         --max-output n   stop any test that writes more than n bytes");
+      System.out.println("         --memoize        run each distinct command only once");
+      System.out.println("         --store          keep new expected outputs in expected/.blobs");
+      System.out.println("         --migrate-store  move existing expected outputs in to the store");
+      System.out.println("         --fork-java      run each java: test in a new JVM");
+      System.out.println("         --scratch dir    capture outputs in dir (e.g., /dev/shm), keeping");
+      System.out.println("                          only those of failing tests in actual");
+      System.out.println("         --watch          run affected tests again when files change");
+      System.out.println("         --early-exit     compare outputs while tests run, stopping a");
+      System.out.println("                          failing test early with --fail-fast");
+      System.out.println("         --only-failed    run only the tests that failed in the last run");
+      System.out.println("         --lazy           read each nested test set only when it is needed");
+      System.out.println("         --results file   write results to file (for use with --merge)");
+      System.out.println("         --merge files    combine the results from several shards");
       System.exit(0);
     }
     try {
       int flags = 0;
-      File home = new File(".");
+      ArrayList<TestSet> roots = new ArrayList<TestSet>();
+      ArrayList<Folder> folders = new ArrayList<Folder>();
+      File results = null;
+      boolean onlyFailed = false;
+      boolean watch = false;
+      Test.index = Index.load(new File(Test.stateDir, "index"));
+      TestParser.snapshot = Snapshot.load(new File(Test.stateDir, "snapshot"));
       for (int i = 0; i < args.length; i++) {
-        if (args[i].startsWith("-")) {
+        if (args[i].startsWith("--")) {
+          // Long options, with a value that follows either an "=" or as the next argument:
+          String option = args[i];
+          String value = null;
+          int eq = option.indexOf('=');
+          if (eq > 0) {
+            value = option.substring(eq + 1);
+            option = option.substring(0, eq);
+          }
+          switch (option) {
+            case "--shard":
+              {
+                value = (value != null) ? value : optionValue(args, ++i, option);
+                int slash = value.indexOf('/');
+                shard = (slash > 0) ? parseCount(value.substring(0, slash)) : (-1);
+                shards = (slash > 0) ? parseCount(value.substring(slash + 1)) : (-1);
+                if (shard < 1 || shard > shards) {
+                  fatal("Invalid shard \"" + value + "\" (expected i/n, with 1 <= i <= n)");
+                }
+                shard--; // shards are numbered from zero internally
+                if (results == null) {
+                  results = new File(Test.stateDir, "shard-" + (shard + 1) + "-of-" + shards);
+                }
+                break;
+              }
+            case "--unified":
+              flags |= Test.UNIFIED;
+              break;
+            case "--max-hunks":
+              {
+                value = (value != null) ? value : optionValue(args, ++i, option);
+                Diff.maxHunks = parseCount(value);
+                if (Diff.maxHunks < 0) {
+                  fatal("Invalid number of hunks \"" + value + "\"");
+                }
+                break;
+              }
+            case "--fail-fast":
+              TestCase.maxFailures = 1;
+              break;
+            case "--max-failures":
+              {
+                value = (value != null) ? value : optionValue(args, ++i, option);
+                TestCase.maxFailures = parseCount(value);
+                if (TestCase.maxFailures < 1) {
+                  fatal("Invalid number of failures \"" + value + "\"");
+                }
+                break;
+              }
+            case "--max-output":
+              {
+                value = (value != null) ? value : optionValue(args, ++i, option);
+                TestCase.defaultMaxOutput = Directives.parseSize(value);
+                if (TestCase.defaultMaxOutput < 0) {
+                  fatal("Invalid output limit \"" + value + "\"");
+                }
+                break;
+              }
+            case "--memoize":
+              TestCase.memoize = true;
+              break;
+            case "--store":
+              useStore = true;
+              break;
+            case "--migrate-store":
+              {
+                BlobStore store = BlobStore.open(new File("expected"));
+                int moved = store.migrate();
+                store.save();
+                Test.blobs = store;
+                Output.println("Moved " + moved + " expected output files in to the store");
+                break;
+              }
+            case "--fork-java":
+              WorkerPool.enabled = false;
+              break;
+            case "--scratch":
+              {
+                value = (value != null) ? value : optionValue(args, ++i, option);
+                if (!new File(value).isDirectory()) {
+                  fatal("Scratch folder \"" + value + "\" does not exist");
+                }
+                TestCase.scratch = Scratch.create(new File(value));
+                break;
+              }
+            case "--watch":
+              watch = true;
+              break;
+            case "--early-exit":
+              flags |= Test.EARLY;
+              break;
+            case "--only-failed":
+              onlyFailed = true;
+              break;
+            case "--lazy":
+              TestParser.lazy = true;
+              break;
+            case "--results":
+              results = new File((value != null) ? value : optionValue(args, ++i, option));
+              break;
+            case "--merge":
+              {
+                ArrayList<File> files = new ArrayList<File>();
+                for (i++; i < args.length; i++) {
+                  files.add(new File(args[i]));
+                }
+                for (TestSet tests : Results.merge(files)) {
+                  tests.summary(flags, 0, tests.name + ": " + tests.counts());
+                  summarize(tests, flags);
+                }
+                break;
+              }
+            default:
+              fatal("Unknown command line option " + option);
+          }
+        } else if (args[i].startsWith("-")) {
           int l = args[i].length();
           if (l <= 1) {
-            System.out.println("Missing option characters");
-            System.exit(-1);
+            fatal("Missing option characters");
           } else {
             for (int j = 1; j < l; j++) {
               switch (args[i].charAt(j)) {
@@ -68,40 +222,315 @@ public class Main {
                 case 't':
                   flags |= Test.TREE;
                   break;
+                case 'o':
+                  flags |= Test.STREAM;
+                  break;
+                case 'l':
+                  flags |= Test.LINES;
+                  break;
+                case 'u':
+                  flags |= Test.RUNTESTS | Test.UPTODATE;
+                  break;
+                case 'm':
+                  flags |= Test.METRICS;
+                  break;
+                case 'd':
+                  flags |= Test.DIFFS;
+                  break;
+                case 'j':
+                  {
+                    // The job count follows immediately (-j4) or as the next argument (-j 4):
+                    String count = args[i].substring(j + 1);
+                    if (count.length() == 0 && i + 1 < args.length) {
+                      count = args[++i];
+                    }
+                    jobs = parseCount(count);
+                    if (jobs < 1) {
+                      fatal("Invalid number of jobs \"" + count + "\"");
+                    }
+                    j = l; // skip the rest of this argument
+                    break;
+                  }
+                case 'T':
+                  {
+                    String seconds = args[i].substring(j + 1);
+                    if (seconds.length() == 0 && i + 1 < args.length) {
+                      seconds = args[++i];
+                    }
+                    TestCase.defaultTimeout = Directives.parseSeconds(seconds);
+                    if (TestCase.defaultTimeout < 0) {
+                      fatal("Invalid timeout \"" + seconds + "\"");
+                    }
+                    j = l; // skip the rest of this argument
+                    break;
+                  }
                 default:
-                  System.out.println("Unknown command line flag " + args[i].charAt(j));
-                  System.exit(-1);
+                  fatal("Unknown command line flag " + args[i].charAt(j));
               }
             }
           }
+        } else if (TestCase.stopped) {
+          break; // do not start any more test folders once testing has been stopped
         } else {
-          File expected = new File("expected");
-          if (!Test.checkDirectory(expected)) {
-            System.out.println("Unable to access or create folder \"" + expected.getPath() + "\"");
-            System.exit(-1);
-          }
-          File actual = new File("actual");
-          if (!Test.checkDirectory(actual)) {
-            System.out.println("Unable to access or create folder \"" + actual.getPath() + "\"");
-            System.exit(-1);
-          }
-          TestSet tests = TestParser.readTestSet(home, args[i]);
-          tests.run(expected, actual, "", 0, flags);
-          if ((flags & Test.TREE) != 0) {
-            System.out.println();
-            System.out.println("Summary of test case distribution:");
-            tests.displayTestTree(0);
-          }
-          if (tests.numPassed() == tests.size()) {
-            System.out.println();
-            System.out.println("ALL TESTS PASSED");
+          Folder folder = new Folder(args[i], flags, onlyFailed);
+          folders.add(folder);
+          roots.add(runFolder(folder));
+        }
+      }
+      finishRun(roots, results, flags);
+      if (watch && !folders.isEmpty()) {
+        // Wait for changes to the tests files or to the inputs of any test, and then run again:
+        Watcher watcher = new Watcher();
+        for (; ; ) {
+          watcher.watch(roots);
+          Output.println();
+          Output.println("Watching for changes (press Ctrl-C to stop) ...");
+          Output.flush();
+          Output.println();
+          Output.println("Changes to " + watcher.await() + "; running affected tests again");
+          Test.failures.clear();
+          Test.totalTests.set(0);
+          Test.totalPassed.set(0);
+          TestCase.restart();
+          roots.clear();
+          for (Folder folder : folders) {
+            // Rerun only the tests whose commands or inputs have changed:
+            folder.flags |= Test.RUNTESTS | Test.UPTODATE;
+            roots.add(runFolder(folder));
+            if (TestCase.stopped) {
+              break;
+            }
           }
+          finishRun(roots, results, flags | Test.RUNTESTS | Test.UPTODATE);
         }
       }
-      Test.displayFailures(flags);
+      if (scheduler != null) {
+        scheduler.shutdown();
+      }
     } catch (Exception e) {
+      Output.flush();
       System.out.println("Exception occurred: " + e);
       e.printStackTrace();
     }
   }
+
+  /** The number of tests to run in parallel. */
+  private static int jobs = Scheduler.defaultJobs();
+
+  /** The pool of worker threads for running tests in parallel, or null if not yet needed. */
+  private static Scheduler scheduler = null;
+
+  /** The folder that contains the test folders. */
+  private static File home = new File(".");
+
+  /** The shard to run (numbered from zero), and the number of shards. */
+  private static int shard = 0;
+
+  private static int shards = 1;
+
+  /** Set if new expected outputs should be kept in the content-addressed store. */
+  private static boolean useStore = false;
+
+  /** A test folder (or pattern) from the command line, with the settings that apply to it. */
+  private static class Folder {
+
+    String arg;
+
+    int flags;
+
+    boolean onlyFailed;
+
+    Folder(String arg, int flags, boolean onlyFailed) {
+      this.arg = arg;
+      this.flags = flags;
+      this.onlyFailed = onlyFailed;
+    }
+  }
+
+  /** Read and run the tests in a folder from the command line, and display a summary. */
+  private static TestSet runFolder(Folder run) throws Exception {
+    File expected = new File("expected");
+    if (!Test.checkDirectory(expected)) {
+      fatal("Unable to access or create folder \"" + expected.getPath() + "\"");
+    }
+    if (Test.blobs == null && (useStore || BlobStore.exists(expected))) {
+      Test.blobs = BlobStore.open(expected);
+    }
+    File actual = new File("actual");
+    if (!Test.checkDirectory(actual)) {
+      fatal("Unable to access or create folder \"" + actual.getPath() + "\"");
+    }
+    // The argument is either a test folder, or a pattern that starts with a test folder:
+    int flags = run.flags;
+    String folder = run.arg;
+    String pattern = null;
+    if (Selector.isPattern(folder) || !new File(folder, TestSet.root).isFile()) {
+      pattern = folder;
+      folder = testFolder(pattern);
+      if (folder == null) {
+        fatal("No test folder found for \"" + pattern + "\"");
+      }
+    }
+    Selector selector = null;
+    if (pattern != null || run.onlyFailed) {
+      selector = new Selector(pattern, run.onlyFailed ? Test.failedTests.keys() : null);
+    }
+    TestSet tests = TestParser.readTestSet(home, folder, selector);
+    if (shards > 1) {
+      Scheduler.selectShard(tests, shard, shards);
+    }
+    if (jobs > 1) {
+      if (scheduler == null) {
+        scheduler = new Scheduler(jobs);
+      }
+      tests.schedule(scheduler, expected, actual, "", 0, flags);
+      scheduler.dispatch();
+    }
+    tests.run(expected, actual, "", 0, flags);
+    recordFailures(tests);
+    summarize(tests, flags);
+    return tests;
+  }
+
+  /**
+   * Finish a run: write metrics and results, save the persistent state, and display the list of
+   * failures.
+   */
+  private static void finishRun(ArrayList<TestSet> roots, File results, int flags)
+      throws IOException {
+    if ((flags & Test.METRICS) != 0 && (flags & Test.RUNTESTS) != 0) {
+      writeMetrics(new File(Test.stateDir, "metrics.tsv"), roots);
+    }
+    if (results != null && !roots.isEmpty()) {
+      Results.write(results, roots);
+    }
+    if (TestCase.scratch != null) {
+      TestCase.scratch.clear(); // remove outputs that were kept for sharing with --memoize
+    }
+    Test.index.save();
+    if (Test.blobs != null) {
+      Test.blobs.save();
+    }
+    TestParser.snapshot.save();
+    Test.fingerprints.save();
+    Test.failedTests.save();
+    if (shards == 1) {
+      Scheduler.history.save(); // keep the history fixed so that shards are consistent
+    }
+    if (TestCase.stopped) {
+      Output.println();
+      Output.println(
+          "Testing was stopped after "
+              + TestCase.maxFailures
+              + (TestCase.maxFailures == 1 ? " failure" : " failures")
+              + "; the remaining tests were not run");
+    }
+    Test.displayFailures(flags);
+    Output.flush();
+  }
+
+  /** Display the summary of results at the end of a set of tests. */
+  private static void summarize(TestSet tests, int flags) {
+    if ((flags & Test.TREE) != 0) {
+      Output.println();
+      Output.println("Summary of test case distribution:");
+      tests.displayTestTree(0, flags);
+    }
+    if (tests.numPassed() == tests.size()) {
+      Output.println();
+      Output.println("ALL TESTS PASSED");
+    }
+  }
+
+  /** The header line for the metrics file. */
+  private static final String METRICS_HEADER =
+      "run\tpath\tstatus\twall_ms\tuser_ms\tsys_ms\tpeak_rss_kb";
+
+  /**
+   * Append the resources used by each test case that was run to the specified file, as tab
+   * separated values, with a first column that records the time of the run. The file is started
+   * again, with a header line, if it does not already begin with the expected header.
+   */
+  private static void writeMetrics(File file, ArrayList<TestSet> roots) {
+    if (!Test.checkDirectory(file.getAbsoluteFile().getParentFile())) {
+      return;
+    }
+    boolean append = false;
+    if (file.isFile()) {
+      try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+        append = METRICS_HEADER.equals(in.readLine());
+      } catch (IOException e) {
+        // start the file again
+      }
+    }
+    try (PrintWriter out = new PrintWriter(new FileWriter(file, append))) {
+      if (!append) {
+        out.println(METRICS_HEADER);
+      }
+      String run = Instant.now().toString();
+      for (TestSet tests : roots) {
+        tests.writeMetrics(out, run, "");
+      }
+    } catch (IOException e) {
+      Output.println("Unable to write metrics file \"" + file.getPath() + "\"");
+    }
+  }
+
+
+  /**
+   * Find the longest prefix of a test selection pattern that names a test folder, returning null
+   * if there is no such prefix.
+   */
+  private static String testFolder(String pattern) {
+    String[] comps = Selector.split(pattern);
+    for (int k = comps.length; k > 0; k--) {
+      String folder = String.join(File.separator, Arrays.copyOf(comps, k));
+      if (!Selector.isPattern(folder) && new File(folder, TestSet.root).isFile()) {
+        return folder;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Record the paths of the selected test cases in the given set that failed, and forget those
+   * that passed, for use with --only-failed.
+   */
+  private static void recordFailures(TestSet tests) {
+    tests.visitCases(
+        "",
+        (path, test) -> {
+          if (test.selected) {
+            if (test.passed) {
+              Test.failedTests.remove(path);
+            } else {
+              Test.failedTests.put(path, test.timedOut ? "T" : "F");
+            }
+          }
+        });
+  }
+
+  /** Return the value for a long option from the command line (or halt if it is missing). */
+  private static String optionValue(String[] args, int i, String option) {
+    if (i >= args.length) {
+      fatal("Missing value for option " + option);
+    }
+    return args[i];
+  }
+
+  /** Display an error message and halt the program. */
+  private static void fatal(String msg) {
+    Output.println(msg);
+    Output.flush();
+    System.exit(-1);
+  }
+
+  /** Parse a (non-negative) count from a command line argument, returning -1 if it is invalid. */
+  private static int parseCount(String str) {
+    try {
+      return Integer.parseInt(str);
+    } catch (NumberFormatException e) {
+      return (-1);
+    }
+  }
 }
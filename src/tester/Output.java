@@ -0,0 +1,55 @@
+/*
+    Copyright 2018 Mark P Jones, Portland State University
+
+    This file is part of tester.
+
+    tester is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    tester is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with tester.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package tester;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+/**
+ * Buffered console output for tester. All messages are written through a single buffered writer
+ * that can be used safely from multiple threads; each call to print writes its text as a single
+ * block, so that the messages for one test case are never interleaved with those of another.
+ */
+class Output {
+
+  /** The buffered writer for standard output. */
+  private static final PrintWriter out =
+      new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+
+  /** Write a block of text to the console. */
+  static synchronized void print(CharSequence text) {
+    out.append(text);
+  }
+
+  /** Write a line of text to the console. */
+  static synchronized void println(String text) {
+    out.println(text);
+  }
+
+  /** Write a blank line to the console. */
+  static synchronized void println() {
+    out.println();
+  }
+
+  /** Make sure that all buffered output has been written to the console. */
+  static synchronized void flush() {
+    out.flush();
+  }
+}
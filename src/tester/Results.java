@@ -0,0 +1,139 @@
+/*
+    Copyright 2018 Mark P Jones, Portland State University
+
+    This file is part of tester.
+
+    tester is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    tester is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with tester.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package tester;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reading and writing files that record the results of a test run, so that the results of runs
+ * for different shards of a test tree (possibly on different machines) can be merged. A results
+ * file lists the structure of each test tree, in tree order, with the result for each test case,
+ * followed by the list of failures that were reported.
+ */
+class Results {
+
+  /** Write the results for the given test trees, and all reported failures, to a file. */
+  static void write(File file, List<TestSet> roots) throws IOException {
+    File dir = file.getAbsoluteFile().getParentFile();
+    if (!Test.checkDirectory(dir)) {
+      throw new IOException("Cannot write results to \"" + file.getPath() + "\"");
+    }
+    try (PrintWriter out = new PrintWriter(file)) {
+      out.println("# tester results");
+      for (TestSet tests : roots) {
+        tests.writeResults(out, 0);
+      }
+      synchronized (Test.failures) {
+        for (FailureSummary f : Test.failures) {
+          out.println(
+              "failure " + f.kind + " " + f.text + "\t" + f.context.replace('\t', ' '));
+        }
+      }
+    }
+  }
+
+  /**
+   * Read and merge the results from several files, returning the merged test trees and adding the
+   * failures from each file to Test.failures. The files must describe the same test trees; the
+   * result for each test case is taken from whichever file has a result for that case.
+   */
+  static List<TestSet> merge(List<File> files) throws IOException {
+    ArrayList<String[]> merged = null;
+    for (File file : files) {
+      ArrayList<String[]> entries = new ArrayList<String[]>();
+      try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.startsWith("failure ")) {
+            String[] fields = line.split(" ", 3);
+            int tab = fields[2].indexOf('\t');
+            Test.failures.add(
+                new FailureSummary(
+                    fields[2].substring(0, tab),
+                    fields[2].substring(tab + 1),
+                    Integer.parseInt(fields[1])));
+          } else if (line.startsWith("set ") || line.startsWith("case ")) {
+            entries.add(line.split(" "));
+          }
+        }
+      }
+      if (merged == null) {
+        merged = entries;
+      } else if (!sameStructure(merged, entries)) {
+        throw new IOException("Results in \"" + file.getPath() + "\" are for different tests");
+      } else {
+        for (int i = 0; i < entries.size(); i++) {
+          String[] entry = entries.get(i);
+          if (entry[0].equals("case") && !entry[2].equals("-")) {
+            merged.set(i, entry);
+          }
+        }
+      }
+    }
+    ArrayList<TestSet> roots = new ArrayList<TestSet>();
+    if (merged != null) {
+      int[] pos = {0};
+      while (pos[0] < merged.size()) {
+        roots.add((TestSet) build(merged, pos));
+      }
+    }
+    return roots;
+  }
+
+  /** Determine whether two lists of entries describe the same test trees. */
+  private static boolean sameStructure(ArrayList<String[]> xs, ArrayList<String[]> ys) {
+    if (xs.size() != ys.size()) {
+      return false;
+    }
+    for (int i = 0; i < xs.size(); i++) {
+      String[] x = xs.get(i);
+      String[] y = ys.get(i);
+      if (!x[0].equals(y[0])
+          || !x[1].equals(y[1])
+          || !x[x.length - 1].equals(y[y.length - 1])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Build the test described by the entry at the given position (and any entries it contains). */
+  private static Test build(ArrayList<String[]> entries, int[] pos) {
+    String[] entry = entries.get(pos[0]++);
+    int nesting = Integer.parseInt(entry[1]);
+    if (entry[0].equals("case")) {
+      TestCase test = new Exec(entry[3], new String[0], "", new Directives());
+      test.selected = !entry[2].equals("-");
+      test.passed = entry[2].equals("P");
+      test.timedOut = entry[2].equals("T");
+      return test;
+    }
+    ArrayList<Test> tests = new ArrayList<Test>();
+    while (pos[0] < entries.size() && Integer.parseInt(entries.get(pos[0])[1]) > nesting) {
+      tests.add(build(entries, pos));
+    }
+    return new TestSet(entry[2], new String[0], tests.toArray(new Test[tests.size()]));
+  }
+}
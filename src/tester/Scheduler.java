@@ -0,0 +1,206 @@
+/*
+    Copyright 2018 Mark P Jones, Portland State University
+
+    This file is part of tester.
+
+    tester is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    tester is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with tester.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package tester;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.BiConsumer;
+
+/**
+ * A bounded pool of worker threads for executing test cases concurrently. Tests are submitted to
+ * the scheduler in advance by Test.schedule, and the results are then collected in the original
+ * order of the test tree by Test.run, so that the outcomes match those of a sequential run.
+ *
+ * <p>Submitted tests are not started until dispatch is called, at which point they are started in
+ * order of decreasing expected duration (using the history of previous runs). Starting the longest
+ * tests first reduces the chance that a few slow tests at the end of the queue will determine the
+ * total time for the run.
+ */
+class Scheduler {
+
+  /** The underlying pool of worker threads. */
+  private ExecutorService pool;
+
+  /** Default constructor. */
+  Scheduler(int jobs) {
+    pool = Threads.bounded("tester-worker-", jobs);
+  }
+
+  /** A task that is waiting to be dispatched, with an estimate of how long it will take. */
+  private static class Job {
+
+    FutureTask<?> task;
+
+    long estimate;
+
+    Job(FutureTask<?> task, long estimate) {
+      this.task = task;
+      this.estimate = estimate;
+    }
+  }
+
+  /** The list of tasks that have been submitted but not yet dispatched. */
+  private ArrayList<Job> queue = new ArrayList<Job>();
+
+  /**
+   * Submit a task to be executed by one of the worker threads, once dispatch is called. The path
+   * of the corresponding test is used to find an estimate of its duration from the history.
+   */
+  <T> Future<T> submit(Callable<T> task, String path) {
+    FutureTask<T> future = new FutureTask<T>(task);
+    queue.add(new Job(future, estimate(path)));
+    return future;
+  }
+
+  /** Start all of the tasks that have been submitted, longest expected duration first. */
+  void dispatch() {
+    // A stable sort, so that tests with equal estimates are started in tree order:
+    Collections.sort(
+        queue,
+        new Comparator<Job>() {
+          public int compare(Job x, Job y) {
+            return Long.compare(y.estimate, x.estimate);
+          }
+        });
+    for (Job job : queue) {
+      pool.execute(job.task);
+    }
+    queue.clear();
+  }
+
+  /** Records the time taken for each test in previous runs, in milliseconds. */
+  static Store history = Store.load(new File(Test.stateDir, "history"));
+
+  /**
+   * Update the history with the time taken for the test with the given path, using an average
+   * that gives equal weight to the latest time and to the previous history. This is synchronized
+   * (like estimate) because tests may finish on several threads at once.
+   */
+  static synchronized void recordDuration(String path, long millis) {
+    long previous = lookup(path);
+    history.put(path, Long.toString((previous < 0) ? millis : (previous + millis) / 2));
+  }
+
+  /** Return the recorded duration for the given test, or -1 if there is no history. */
+  static long lookup(String path) {
+    String value = history.get(path);
+    if (value != null) {
+      try {
+        return Long.parseLong(value);
+      } catch (NumberFormatException e) {
+        // ignore an invalid entry
+      }
+    }
+    return (-1);
+  }
+
+  /** The estimate for tests that have no history, or -1 if not yet computed. */
+  private static long defaultEstimate = (-1);
+
+  /** Estimate how long the test with the given path will take to run, in milliseconds. */
+  static synchronized long estimate(String path) {
+    long duration = lookup(path);
+    if (duration >= 0) {
+      return duration;
+    } else if (defaultEstimate < 0) {
+      // Use the median of all recorded durations (or one second if there is no history):
+      ArrayList<Long> durations = new ArrayList<Long>();
+      for (String value : history.values()) {
+        try {
+          durations.add(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+          // ignore an invalid entry
+        }
+      }
+      Collections.sort(durations);
+      defaultEstimate = durations.isEmpty() ? 1000 : durations.get(durations.size() / 2);
+    }
+    return defaultEstimate;
+  }
+
+  /** Release the worker threads once all of the tests have been run. */
+  void shutdown() {
+    pool.shutdown();
+  }
+
+  /**
+   * Select the test cases in a given shard of a test tree (numbered from 0 to shards-1), so that
+   * the tree can be split across several machines. The partition is deterministic: each case is
+   * assigned, in order of decreasing expected duration, to the shard with the least total work so
+   * far. If there is no recorded history for any of the tests, then every test is treated as
+   * having the same duration, which balances the number of tests in each shard instead. (Every
+   * machine must use the same history for the shards to be consistent.) Only cases that are
+   * already selected are partitioned, so cases that were excluded by a pattern or by --only-failed
+   * remain excluded.
+   */
+  static void selectShard(TestSet tests, int shard, int shards) {
+    final ArrayList<TestCase> cases = new ArrayList<TestCase>();
+    final ArrayList<Long> weights = new ArrayList<Long>();
+    final boolean[] known = new boolean[1];
+    tests.visitCases(
+        "",
+        new BiConsumer<String, TestCase>() {
+          public void accept(String path, TestCase test) {
+            if (test.selected) {
+              cases.add(test);
+              weights.add(estimate(path));
+              known[0] |= lookup(path) >= 0;
+            }
+          }
+        });
+    Integer[] order = new Integer[cases.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+      if (!known[0]) {
+        weights.set(i, 1L);
+      }
+    }
+    Arrays.sort(
+        order,
+        new Comparator<Integer>() {
+          public int compare(Integer x, Integer y) {
+            int c = Long.compare(weights.get(y), weights.get(x));
+            return (c != 0) ? c : Integer.compare(x, y);
+          }
+        });
+    long[] load = new long[shards];
+    for (Integer i : order) {
+      int least = 0;
+      for (int s = 1; s < shards; s++) {
+        if (load[s] < load[least]) {
+          least = s;
+        }
+      }
+      load[least] += weights.get(i);
+      cases.get(i).selected = (least == shard);
+    }
+  }
+
+  /** Return the default number of worker threads (the number of available processors). */
+  static int defaultJobs() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+}
@@ -0,0 +1,77 @@
+/*
+    Copyright 2018 Mark P Jones, Portland State University
+
+    This file is part of tester.
+
+    tester is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    tester is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with tester.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package tester;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A folder for capturing the outputs of tests while they run, typically in RAM-backed storage
+ * such as /dev/shm, so that the outputs of tests that pass never need to be written to the
+ * (possibly slow) disk that holds the actual folder. Each instance of tester uses a new folder
+ * inside the folder given on the command line, and removes it when it exits.
+ */
+class Scratch {
+
+  /** The folder where outputs are captured. */
+  private final File dir;
+
+  /** Used to give each captured output a unique name. */
+  private final AtomicLong count = new AtomicLong();
+
+  /** Default constructor. */
+  private Scratch(File dir) {
+    this.dir = dir;
+  }
+
+  /** Create a new scratch folder inside the given folder, to be removed when tester exits. */
+  static Scratch create(File parent) throws IOException {
+    Scratch scratch = new Scratch(Files.createTempDirectory(parent.toPath(), "tester-").toFile());
+    Runtime.getRuntime()
+        .addShutdownHook(
+            new Thread(
+                () -> {
+                  scratch.clear();
+                  scratch.dir.delete();
+                }));
+    return scratch;
+  }
+
+  /** Return a new file in the scratch folder for capturing the named output. */
+  File file(String name) {
+    return new File(dir, count.incrementAndGet() + "-" + name);
+  }
+
+  /** Remove the given files from the scratch folder. */
+  void remove(File... files) {
+    for (File file : files) {
+      file.delete();
+    }
+  }
+
+  /** Remove all of the files from the scratch folder. */
+  void clear() {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      remove(files);
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/*
+    Copyright 2018 Mark P Jones, Portland State University
+
+    This file is part of tester.
+
+    tester is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    tester is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with tester.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package tester;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Selects the test cases that should be run, using a path pattern such as demo/numbers*, a set of
+ * test paths (such as the tests that failed in the previous run), or both. Each component of a
+ * pattern is matched against the corresponding component of a test path, and may use the glob
+ * wildcards *, ?, [...] and {a,b}; a component ** matches any number of path components. A test
+ * is selected if the pattern matches its path, or the path of any set that contains it.
+ */
+class Selector {
+
+  /** The components of the path pattern, with null for **, or null if there is no pattern. */
+  private Pattern[] pattern;
+
+  /** The set of selected test paths, or null if tests are not selected by path. */
+  private Set<String> paths;
+
+  /** Default constructor. Either argument may be null, but not both. */
+  Selector(String pattern, Collection<String> paths) {
+    if (pattern != null) {
+      String[] comps = split(pattern);
+      this.pattern = new Pattern[comps.length];
+      for (int i = 0; i < comps.length; i++) {
+        this.pattern[i] = comps[i].equals("**") ? null : glob(comps[i]);
+      }
+    }
+    if (paths != null) {
+      this.paths = new HashSet<String>();
+      for (String path : paths) {
+        this.paths.add(String.join(File.separator, split(path)));
+      }
+    }
+  }
+
+  /** Determine whether a string contains any glob wildcard characters. */
+  static boolean isPattern(String str) {
+    for (int i = 0; i < str.length(); i++) {
+      if ("*?[{".indexOf(str.charAt(i)) >= 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Split a path into its (nonempty) components. */
+  static String[] split(String path) {
+    ArrayList<String> comps = new ArrayList<String>();
+    for (String comp : path.split("[/" + Pattern.quote(File.separator) + "]")) {
+      if (comp.length() > 0) {
+        comps.add(comp);
+      }
+    }
+    return comps.toArray(new String[comps.size()]);
+  }
+
+  /** Translate a single glob path component into a regular expression. */
+  private static Pattern glob(String comp) {
+    StringBuilder re = new StringBuilder();
+    int braces = 0;
+    for (int i = 0; i < comp.length(); i++) {
+      char c = comp.charAt(i);
+      if (c == '*') {
+        re.append(".*");
+      } else if (c == '?') {
+        re.append('.');
+      } else if (c == '{') {
+        re.append("(?:");
+        braces++;
+      } else if (c == '}' && braces > 0) {
+        re.append(')');
+        braces--;
+      } else if (c == ',' && braces > 0) {
+        re.append('|');
+      } else if (c == '[' && comp.indexOf(']', i + 1) > i + 1) {
+        int end = comp.indexOf(']', i + 1);
+        String cls = comp.substring(i + 1, end);
+        re.append('[');
+        re.append(cls.startsWith("!") ? "^" + cls.substring(1) : cls);
+        re.append(']');
+        i = end;
+      } else {
+        re.append(Pattern.quote(String.valueOf(c)));
+      }
+    }
+    return Pattern.compile(re.toString());
+  }
+
+  /** Determine whether the test case with the given path should be run. */
+  boolean selects(String path) {
+    return (pattern == null || matches(0, split(path), 0, false))
+        && (paths == null || paths.contains(path));
+  }
+
+  /** Determine whether the set of tests with the given path might contain a selected test. */
+  boolean mayContain(String path) {
+    if (pattern != null && !matches(0, split(path), 0, true)) {
+      return false;
+    }
+    if (paths != null) {
+      for (String p : paths) {
+        if (p.equals(path) || p.startsWith(path + File.separator)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Determine whether the pattern, from component i onwards, matches a prefix of the path, from
+   * component j onwards. If partial is set, then the match also succeeds if the path is a prefix
+   * of a path that the pattern could match.
+   */
+  private boolean matches(int i, String[] path, int j, boolean partial) {
+    if (i >= pattern.length) {
+      return true;
+    } else if (j >= path.length) {
+      return partial;
+    } else if (pattern[i] == null) {
+      return matches(i + 1, path, j, partial) || matches(i, path, j + 1, partial);
+    } else {
+      return pattern[i].matcher(path[j]).matches() && matches(i + 1, path, j + 1, partial);
+    }
+  }
+}
@@ -0,0 +1,178 @@
+/*
+    Copyright 2018 Mark P Jones, Portland State University
+
+    This file is part of tester.
+
+    tester is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    tester is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with tester.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package tester;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A persistent snapshot of the parsed contents of each tests file that tester has read, stored in
+ * a compact binary form. If a tests file has not changed since it was recorded, then its tests can
+ * be rebuilt from the snapshot without parsing the text of the file. (The format of each record
+ * is determined by TestParser.)
+ */
+class Snapshot extends StateFile {
+
+  /** Identifies the format of the snapshot file; files with a different version are ignored. */
+  private static final int VERSION = 3;
+
+  /** Maps the path of each tests file to the corresponding entry. */
+  private Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+  /** Default constructor. */
+  private Snapshot(File file) {
+    super(file);
+  }
+
+  /** Describes the parsed contents of a single tests file. */
+  private static class Entry {
+
+    /** The size of the file, in bytes. */
+    long size;
+
+    /** The modification time of the file, in milliseconds. */
+    long modified;
+
+    /** The time at which the file was parsed, in milliseconds. */
+    long recorded;
+
+    /** The record of the parsed contents of the file. */
+    byte[] contents;
+
+    /** Default constructor. */
+    Entry(long size, long modified, long recorded, byte[] contents) {
+      this.size = size;
+      this.modified = modified;
+      this.recorded = recorded;
+      this.contents = contents;
+    }
+  }
+
+  /** Read the snapshot from the specified file, returning an empty snapshot if there is none. */
+  static Snapshot load(File file) {
+    Snapshot snapshot = new Snapshot(file);
+    snapshot.load();
+    return snapshot;
+  }
+
+  /** Read the snapshot from the given file. */
+  protected void read(File file) throws IOException {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() == VERSION) {
+        for (int n = in.readInt(); n > 0; n--) {
+          String path = in.readUTF();
+          long size = in.readLong();
+          long modified = in.readLong();
+          long recorded = in.readLong();
+          byte[] contents = new byte[in.readInt()];
+          in.readFully(contents);
+          entries.put(path, new Entry(size, modified, recorded, contents));
+        }
+      }
+    }
+  }
+
+  /** Discard all of the entries in the snapshot. */
+  protected void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Return a stream for reading the recorded contents of the given tests file, or null if there
+   * is no record or the file has changed since it was recorded.
+   */
+  DataInputStream lookup(File tests) {
+    Entry entry = entries.get(tests.getPath());
+    if (entry != null
+        && entry.size == tests.length()
+        && entry.modified == tests.lastModified()
+        && trusted(entry.modified, entry.recorded, TimeUnit.MILLISECONDS)) {
+      return new DataInputStream(new ByteArrayInputStream(entry.contents));
+    }
+    return null;
+  }
+
+  /** Remove the record for the given tests file (for example, because it is damaged). */
+  void remove(File tests) {
+    if (entries.remove(tests.getPath()) != null) {
+      changed = true;
+    }
+  }
+
+  /**
+   * Record the parsed contents of the given tests file, whose size and modification time (from
+   * before it was read) are also provided.
+   */
+  void put(File tests, long size, long modified, byte[] contents) {
+    long recorded = System.currentTimeMillis();
+    entries.put(tests.getPath(), new Entry(size, modified, recorded, contents));
+    changed = true;
+  }
+
+  /** Write the snapshot to the given file, dropping entries for files that no longer exist. */
+  protected void write(File file) throws IOException {
+    entries.keySet().removeIf(path -> !new File(path).isFile());
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+      out.writeInt(VERSION);
+      out.writeInt(entries.size());
+      for (Map.Entry<String, Entry> e : entries.entrySet()) {
+        Entry entry = e.getValue();
+        out.writeUTF(e.getKey());
+        out.writeLong(entry.size);
+        out.writeLong(entry.modified);
+        out.writeLong(entry.recorded);
+        out.writeInt(entry.contents.length);
+        out.write(entry.contents);
+      }
+    }
+  }
+
+  /** Write an array of strings to a record. */
+  static void writeStrings(DataOutputStream out, String[] strs) throws IOException {
+    out.writeInt(strs.length);
+    for (int i = 0; i < strs.length; i++) {
+      out.writeUTF(strs[i]);
+    }
+  }
+
+  /** Read an array of strings from a record. */
+  static String[] readStrings(DataInputStream in) throws IOException {
+    int n = in.readInt();
+    if (n < 0) {
+      throw new IOException("Damaged snapshot record");
+    }
+    String[] strs = new String[n];
+    for (int i = 0; i < strs.length; i++) {
+      strs[i] = in.readUTF();
+    }
+    return strs;
+  }
+}
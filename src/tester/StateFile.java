@@ -0,0 +1,94 @@
+/*
+    Copyright 2018 Mark P Jones, Portland State University
+
+    This file is part of tester.
+
+    tester is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    tester is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with tester.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package tester;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A file that holds information that tester keeps from one run to the next (such as the index or
+ * the snapshot in the .tester folder). A file that cannot be read is ignored, and is rebuilt from
+ * scratch, and changes are written to a temporary file that is then moved into place, so that an
+ * interrupted run never leaves a damaged file behind.
+ */
+abstract class StateFile {
+
+  /** The file in which the state is stored. */
+  protected File file;
+
+  /** Set if the state has changed since it was loaded. */
+  protected volatile boolean changed = false;
+
+  /** Default constructor. */
+  protected StateFile(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Entries for files that were modified within this many milliseconds of being recorded are not
+   * trusted, because a later change to the file might not alter its modification time.
+   */
+  private static final long RACY = 2000L;
+
+  /**
+   * Determine whether an entry for a file that was modified at the given time, and recorded at
+   * the given time (both measured in the given unit), can be trusted.
+   */
+  static boolean trusted(long modified, long recorded, TimeUnit unit) {
+    return unit.toMillis(recorded - modified) > RACY;
+  }
+
+  /** Read the state from its file, if there is one, ignoring a file that is damaged. */
+  protected void load() {
+    if (file.isFile()) {
+      try {
+        read(file);
+      } catch (IOException | NumberFormatException e) {
+        clear(); // ignore a damaged file; it will be rebuilt
+      }
+    }
+  }
+
+  /** Read the state from the given file. */
+  protected abstract void read(File file) throws IOException;
+
+  /** Discard all of the state. */
+  protected abstract void clear();
+
+  /** Write the state to the given file. */
+  protected abstract void write(File file) throws IOException;
+
+  /** Write the state back to its file, if it has changed. */
+  void save() {
+    if (!changed || !Test.checkDirectory(file.getAbsoluteFile().getParentFile())) {
+      return;
+    }
+    File tmp = new File(file.getPath() + ".tmp");
+    try {
+      write(tmp);
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      changed = false;
+    } catch (IOException e) {
+      Output.println("Unable to write file \"" + file.getPath() + "\"");
+    }
+  }
+}
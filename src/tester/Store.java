@@ -0,0 +1,107 @@
+/*
+    Copyright 2018 Mark P Jones, Portland State University
+
+    This file is part of tester.
+
+    tester is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    tester is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with tester.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package tester;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A simple persistent map from keys (typically test paths) to values, stored as a text file with
+ * one "value key" entry on each line. Values may not contain spaces, but keys may.
+ */
+class Store extends StateFile {
+
+  /** The current entries. */
+  private Map<String, String> entries = new ConcurrentHashMap<String, String>();
+
+  /** Default constructor. */
+  private Store(File file) {
+    super(file);
+  }
+
+  /** Read entries from the specified file, returning an empty store if it does not exist. */
+  static Store load(File file) {
+    Store store = new Store(file);
+    store.load();
+    return store;
+  }
+
+  /** Read the entries from the given file. */
+  protected void read(File file) throws IOException {
+    try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int i = line.indexOf(' ');
+        if (i > 0) {
+          entries.put(line.substring(i + 1), line.substring(0, i));
+        }
+      }
+    }
+  }
+
+  /** Discard all of the entries. */
+  protected void clear() {
+    entries.clear();
+  }
+
+  /** Return the value for the given key, or null if there is no entry for that key. */
+  String get(String key) {
+    return entries.get(key);
+  }
+
+  /** Return all of the keys in this store. */
+  Collection<String> keys() {
+    return entries.keySet();
+  }
+
+  /** Return all of the values in this store. */
+  Collection<String> values() {
+    return entries.values();
+  }
+
+  /** Set the value for the given key. */
+  void put(String key, String value) {
+    if (!value.equals(entries.put(key, value))) {
+      changed = true;
+    }
+  }
+
+  /** Remove the entry for the given key. */
+  void remove(String key) {
+    if (entries.remove(key) != null) {
+      changed = true;
+    }
+  }
+
+  /** Write the entries to the given file, sorted by key. */
+  protected void write(File file) throws IOException {
+    try (PrintWriter out = new PrintWriter(file)) {
+      for (Map.Entry<String, String> e : new TreeMap<String, String>(entries).entrySet()) {
+        out.println(e.getValue() + " " + e.getKey());
+      }
+    }
+  }
+}
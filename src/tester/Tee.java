@@ -0,0 +1,368 @@
+/*
+    Copyright 2018 Mark P Jones, Portland State University
+
+    This file is part of tester.
+
+    tester is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    tester is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with tester.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package tester;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Copies an output stream of a running process to a file, comparing it with an expected output
+ * as it goes, so that the result of the comparison is known as soon as the process finishes, and
+ * so that a process whose output is known to be wrong can be stopped without waiting for it to
+ * finish. The comparison is byte for byte, or uses the same canonical form for line endings as
+ * Compare.lines when the LINES flag is set. The amount of output that is written to the file can
+ * also be limited, in which case any output beyond the limit is replaced by a short marker, and a
+ * list of filters can be applied to each line of output before it is written and compared.
+ */
+class Tee implements Callable<Boolean> {
+
+  /** The size of the buffers that are used to copy and compare output. */
+  private static final int BUFSIZE = 1 << 16;
+
+  /** The stream from which output is read. */
+  private InputStream in;
+
+  /** The file to which output is written. */
+  private File actual;
+
+  /** The maximum number of bytes that will be written to the file (zero for no limit). */
+  private long limit;
+
+  /** The filters that are applied to each line of output (possibly empty). */
+  private List<Filter> filters;
+
+  /** The file that holds the expected output, or null if there is no comparison. */
+  private File expected;
+
+  /** Set if differences in line endings should be ignored. */
+  private boolean lines;
+
+  /** Called (once) as soon as the output is known to differ from the expected output. */
+  private Runnable onDifference;
+
+  /** Called (once) if the output exceeds the limit. */
+  private Runnable onOverflow;
+
+  /** Set once the output is known to differ from the expected output. */
+  private volatile boolean different = false;
+
+  /** Set if the output exceeded the limit. */
+  private volatile boolean overflowed = false;
+
+  /** Default constructor. */
+  Tee(
+      InputStream in,
+      File actual,
+      long limit,
+      List<Filter> filters,
+      File expected,
+      boolean lines,
+      Runnable onDifference,
+      Runnable onOverflow) {
+    this.in = in;
+    this.actual = actual;
+    this.limit = limit;
+    this.filters = filters;
+    this.expected = expected;
+    this.lines = lines;
+    this.onDifference = onDifference;
+    this.onOverflow = onOverflow;
+  }
+
+  /** Return true if the output exceeded the limit, and was truncated. */
+  boolean overflowed() {
+    return overflowed;
+  }
+
+  /** The stream for writing to the actual output file. */
+  private OutputStream out;
+
+  /** The expected output, or null if there is no comparison. */
+  private Expected exp;
+
+  /** Converts output to canonical form for comparison, or null if not required. */
+  private Canonical canon;
+
+  /** The number of bytes that have been written to the actual output file. */
+  private long written = 0;
+
+  /**
+   * Copy the output to the actual output file, returning true if it matched the expected output
+   * (or false if it did not, if it was truncated, or if there was no expected output).
+   */
+  public Boolean call() throws IOException {
+    byte[] buf = new byte[BUFSIZE];
+    try (InputStream src = in;
+        OutputStream dst = new FileOutputStream(actual)) {
+      out = dst;
+      if (expected != null) {
+        exp = lines ? new CanonicalExpected(expected) : new ExactExpected(expected);
+        canon = lines ? new Canonical() : null;
+      }
+      try {
+        LineFilter filter = filters.isEmpty() ? null : new LineFilter();
+        for (int n; (n = src.read(buf)) > 0; ) {
+          boolean more = (filter == null) ? emit(buf, 0, n) : filter.write(buf, n);
+          if (!more) {
+            return false;
+          }
+        }
+        if ((filter != null && !filter.finish()) || exp == null) {
+          return false;
+        }
+        if (!different && ((canon != null && !canon.finish(exp)) || !exp.atEnd())) {
+          differs();
+        }
+      } finally {
+        if (exp != null) {
+          exp.close();
+        }
+      }
+      return !different;
+    }
+  }
+
+  /**
+   * Write n bytes of (filtered) output, starting at offset off in buf, to the actual output file,
+   * comparing them with the expected output, and returning false if the output has exceeded the
+   * limit. The bytes are compared in pieces of at most BUFSIZE bytes, which is the size of the
+   * buffers that are used for comparison.
+   */
+  private boolean emit(byte[] buf, int off, int n) throws IOException {
+    int keep = (limit > 0 && n > limit - written) ? (int) (limit - written) : n;
+    out.write(buf, off, keep);
+    written += keep;
+    for (int i = 0; i < keep && exp != null && !different; i += BUFSIZE) {
+      int len = Math.min(BUFSIZE, keep - i);
+      boolean same =
+          (canon == null) ? exp.matches(buf, off + i, len) : canon.matches(buf, off + i, len, exp);
+      if (!same) {
+        differs();
+      }
+    }
+    if (keep < n) {
+      out.write(
+          ("\n*** output truncated after " + limit + " bytes ***\n")
+              .getBytes(StandardCharsets.UTF_8));
+      overflowed = true;
+      if (onOverflow != null) {
+        onOverflow.run();
+      }
+      return false;
+    }
+    return true;
+  }
+
+  /** The maximum number of bytes in a line that is filtered as a single unit. */
+  private static final int MAX_LINE = 1 << 20;
+
+  /**
+   * Collects output into lines, passing each line through the list of filters before it is
+   * written. Each line is decoded as UTF-8 if it is valid UTF-8, or as ISO-8859-1 (one character
+   * for each byte) if it is not, so the bytes of a line are never changed unless a filter matches
+   * it. Lines longer than MAX_LINE bytes are filtered in pieces.
+   */
+  private class LineFilter {
+
+    /** Holds the bytes of the current (incomplete) line. */
+    private ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    /** Decodes lines that are valid UTF-8 (reporting an error for any that are not). */
+    private CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder();
+
+    /** Add n bytes of output, writing any lines that they complete. */
+    boolean write(byte[] buf, int n) throws IOException {
+      int start = 0;
+      for (int i = 0; i < n; i++) {
+        if (buf[i] == '\n' || line.size() + (i + 1 - start) >= MAX_LINE) {
+          line.write(buf, start, i + 1 - start);
+          start = i + 1;
+          if (!flush()) {
+            return false;
+          }
+        }
+      }
+      line.write(buf, start, n - start);
+      return true;
+    }
+
+    /** Write any remaining output at the end of the input. */
+    boolean finish() throws IOException {
+      return line.size() == 0 || flush();
+    }
+
+    /** Filter and write the current line (the filters are not applied to its terminator). */
+    private boolean flush() throws IOException {
+      byte[] bytes = line.toByteArray();
+      line.reset();
+      int end = bytes.length;
+      if (end > 0 && bytes[end - 1] == '\n') {
+        end -= (end > 1 && bytes[end - 2] == '\r') ? 2 : 1;
+      }
+      Charset charset = StandardCharsets.UTF_8;
+      String text;
+      try {
+        text = utf8.decode(ByteBuffer.wrap(bytes, 0, end)).toString();
+      } catch (CharacterCodingException e) {
+        charset = StandardCharsets.ISO_8859_1;
+        text = new String(bytes, 0, end, charset);
+      }
+      String filtered = text;
+      for (Filter f : filters) {
+        filtered = f.apply(filtered);
+      }
+      if (!filtered.equals(text)) {
+        ByteArrayOutputStream changed = new ByteArrayOutputStream();
+        changed.write(filtered.getBytes(charset));
+        changed.write(bytes, end, bytes.length - end);
+        bytes = changed.toByteArray();
+      }
+      return emit(bytes, 0, bytes.length);
+    }
+  }
+
+  /** Record that the output differs from the expected output. */
+  private void differs() {
+    different = true;
+    if (onDifference != null) {
+      onDifference.run();
+    }
+  }
+
+  /** Reads the expected output for comparison. */
+  private abstract static class Expected {
+
+    /** Determine whether the next n bytes of the expected output match those in buf at off. */
+    abstract boolean matches(byte[] buf, int off, int n) throws IOException;
+
+    /** Determine whether the end of the expected output has been reached. */
+    abstract boolean atEnd() throws IOException;
+
+    /** Close the expected output. */
+    abstract void close() throws IOException;
+  }
+
+  /** Reads the bytes of the expected output exactly as they appear in the file. */
+  private static class ExactExpected extends Expected {
+    private InputStream in;
+    private byte[] buf = new byte[BUFSIZE];
+
+    ExactExpected(File file) throws IOException {
+      in = new BufferedInputStream(new FileInputStream(file), BUFSIZE);
+    }
+
+    boolean matches(byte[] actual, int off, int n) throws IOException {
+      return in.readNBytes(buf, 0, n) == n && Arrays.equals(buf, 0, n, actual, off, off + n);
+    }
+
+    boolean atEnd() throws IOException {
+      return in.read() < 0;
+    }
+
+    void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /** Reads the canonical form of the expected output, as used by Compare.lines. */
+  private static class CanonicalExpected extends Expected {
+    private FileChannel channel;
+    private Compare.Lines src;
+
+    CanonicalExpected(File file) throws IOException {
+      channel = Compare.open(file);
+      src = new Compare.Lines(channel, ByteBuffer.allocate(BUFSIZE));
+    }
+
+    boolean matches(byte[] canonical, int off, int n) throws IOException {
+      for (int i = off; i < off + n; i++) {
+        if (src.next() != (canonical[i] & 0xff)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    boolean atEnd() throws IOException {
+      return src.next() < 0;
+    }
+
+    void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  /**
+   * Converts output to the canonical form used by Compare.lines, in which "\r\n" and a lone "\r"
+   * are replaced by "\n", and a final line is always terminated, one buffer at a time.
+   */
+  private static class Canonical {
+
+    /** Holds the canonical form of each buffer of output. */
+    private byte[] out = new byte[BUFSIZE];
+
+    /** Set if the last byte of output was a carriage return. */
+    private boolean cr = false;
+
+    /** The last byte of canonical output, or -1 if there has been no output. */
+    private int last = (-1);
+
+    /** Convert n bytes of output at off in buf, and compare them with the expected output. */
+    boolean matches(byte[] buf, int off, int n, Expected exp) throws IOException {
+      int m = 0;
+      for (int i = off; i < off + n; i++) {
+        byte b = buf[i];
+        if (b == '\n' && cr) {
+          cr = false; // already output as part of "\r\n"
+          continue;
+        }
+        cr = (b == '\r');
+        out[m++] = cr ? (byte) '\n' : b;
+      }
+      if (m > 0) {
+        last = out[m - 1];
+      }
+      return exp.matches(out, 0, m);
+    }
+
+    /** Compare the terminator for an unterminated final line, if necessary. */
+    boolean finish(Expected exp) throws IOException {
+      if (last >= 0 && last != '\n') {
+        out[0] = '\n';
+        return exp.matches(out, 0, 1);
+      }
+      return true;
+    }
+  }
+}
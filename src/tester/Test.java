@@ -20,10 +20,16 @@ package tester;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 /** Represents a test (either a single test case or a set of tests). */
 public abstract class Test {
@@ -49,25 +55,59 @@ public abstract class Test {
   /** Calculate the total number of test cases that have passed in this test. */
   public abstract int numPassed();
 
+  /**
+   * Calculate the total number of test cases in this test, including those that were not selected
+   * to run (and so are not counted by size).
+   */
+  public abstract int numCases();
+
   /**
    * Display a tree with summary statistics for each section of a test set. (Poor complexity in
-   * principle, but probably good enough in practice.)
+   * principle, but probably good enough in practice.) If the METRICS flag is set, then the tree
+   * also shows the resources used by each test.
+   */
+  public abstract void displayTestTree(int nesting, int flags);
+
+  /** Add the resources used by this test (if known) to the given total. */
+  abstract void addUsage(Usage total);
+
+  /**
+   * Write the resources used by each test case in this test that was run, as lines of tab
+   * separated values that start with the given run id, to the given output, with the enclosing
+   * path given as a parameter.
+   */
+  abstract void writeMetrics(PrintWriter out, String run, String path);
+
+  /**
+   * Apply the given visitor to each of the individual test cases in this test, together with its
+   * path, in tree order. The path parameter specifies the enclosing path.
    */
-  public abstract void displayTestTree(int nesting);
+  abstract void visitCases(String path, BiConsumer<String, TestCase> visitor);
+
+  /** Write a description of this test and its results, at the given nesting level. */
+  abstract void writeResults(PrintWriter out, int nesting);
 
   /** Compute a new path name for this test given the enclosing path. */
   protected String extendPath(String path) {
     return (path == null || path.length() == 0) ? name : (path + File.separator + name);
   }
 
+  /**
+   * Check that the specified folder exists, creating it if neccessary, returning true on success.
+   * Unlike checkDirectory, no message is displayed if the folder cannot be used.
+   */
+  protected static boolean makeDirectory(File dir) {
+    return dir.exists() ? dir.isDirectory() : (dir.mkdir() || dir.isDirectory());
+  }
+
   /**
    * Check that the specified folder exists, creating it if neccessary, returning true on success.
    */
   protected static boolean checkDirectory(File dir) {
-    if (dir.exists() ? dir.isDirectory() : dir.mkdir()) {
+    if (makeDirectory(dir)) {
       return true;
     }
-    System.out.println("Cannot access directory \"" + dir.getPath() + "\"");
+    Output.println("Cannot access directory \"" + dir.getPath() + "\"");
     return false;
   }
 
@@ -76,19 +116,10 @@ public abstract class Test {
     if (!file.exists() || (file.isFile() && file.canWrite())) {
       return true;
     }
-    System.out.println("Cannot write to file \"" + file.getPath() + "\"");
+    Output.println("Cannot write to file \"" + file.getPath() + "\"");
     return false;
   }
 
-  /** Write strings to file. */
-  protected static void writeFile(File file, String[] lines) throws FileNotFoundException {
-    PrintWriter out = new PrintWriter(file);
-    for (int i = 0; i < lines.length; i++) {
-      out.println(lines[i]);
-    }
-    out.close();
-  }
-
   /** Parse a string, adding each token as a separate command line argument to the given array. */
   protected static void addArgs(ArrayList<String> args, String str) {
     int l = str.length();
@@ -113,57 +144,174 @@ public abstract class Test {
     }
   }
 
-  /** Compare the content of two (text) files for equality. */
-  public static boolean sameContent(File left, File right) throws Exception {
-    BufferedReader lreader = new BufferedReader(new FileReader(left));
-    BufferedReader rreader = new BufferedReader(new FileReader(right));
-    String lstr, rstr;
-    do {
-      lstr = lreader.readLine();
-      rstr = rreader.readLine();
-    } while (lstr != null && rstr != null && lstr.equals(rstr));
-    lreader.close();
-    rreader.close();
-    return (lstr == null) && (rstr == null);
+  /** Name of the folder where tester stores information that persists between runs. */
+  public static final File stateDir = new File(".tester");
+
+  /** An index of hashes for the files that have been compared, or null if there is no index. */
+  public static Index index = null;
+
+  /** Fingerprints for the test cases that passed when they were last run (see TestCase). */
+  public static Store fingerprints = Store.load(new File(stateDir, "fingerprints"));
+
+  /** The paths of the test cases that failed when they were last run (see --only-failed). */
+  public static Store failedTests = Store.load(new File(stateDir, "failed"));
+
+  /**
+   * Compare the content of two files for equality, using the index (if there is one) to avoid
+   * reading files that have not changed. The comparison is byte for byte unless the LINES flag is
+   * set, in which case differences in line endings are ignored. For a byte for byte comparison
+   * with an expected output in the store, only the left file is read.
+   */
+  public static boolean sameContent(File left, File right, int flags) throws Exception {
+    if (blobs != null && (flags & LINES) == 0) {
+      Boolean same = blobs.same(left, right);
+      if (same != null) {
+        return same;
+      }
+    }
+    if (index != null) {
+      return index.same(left, right, flags);
+    }
+    return ((flags & LINES) != 0) ? Compare.lines(left, right) : Compare.exact(left, right);
+  }
+
+  /**
+   * The content-addressed store for expected outputs, or null if expected outputs are stored as
+   * ordinary files.
+   */
+  public static BlobStore blobs = null;
+
+  /**
+   * Return the file that holds the expected output with the given name in the given folder. If
+   * there is a store, this may be a blob that is shared with other tests, and must not be changed.
+   */
+  protected static File expectedFile(File expected, String name) {
+    File file = new File(expected, name);
+    return (blobs == null) ? file : blobs.resolve(file);
   }
 
-  /** Copy the contents of one (text) file in to another. */
+  /** Use the contents of a file as the expected output with the given name in a folder. */
+  protected void saveExpected(File from, File expected, String name) throws Exception {
+    if (blobs == null) {
+      copy(from, new File(expected, name));
+    } else {
+      blobs.put(new File(expected, name), from);
+    }
+  }
+
+  /** Copy the contents of one file in to another. */
   public void copy(File from, File to) throws Exception {
-    BufferedReader fromreader = new BufferedReader(new FileReader(from));
-    PrintWriter towriter = new PrintWriter(to);
-    String str;
-    while ((str = fromreader.readLine()) != null) {
-      towriter.println(str);
+    Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Buffer for the messages that are produced while this test is running, or null if messages
+   * should be written directly to the console.
+   */
+  private StringBuilder buffer;
+
+  /**
+   * Start buffering the messages for this test so that they can be written as a single block. No
+   * buffering is used in interactive mode, where messages must appear before each question.
+   */
+  protected void beginOutput(int flags) {
+    if ((flags & INTERACT) == 0) {
+      buffer = new StringBuilder();
+    }
+  }
+
+  /** Write any messages that have been buffered for this test to the console. */
+  protected void flushOutput() {
+    if (buffer != null && buffer.length() > 0) {
+      Output.print(buffer);
+      buffer.setLength(0);
+    }
+  }
+
+  /** Discard any messages that have been buffered for this test. */
+  protected void discardOutput() {
+    if (buffer != null) {
+      buffer.setLength(0);
+    }
+  }
+
+  /** Write any buffered messages for this test to the console, and stop buffering. */
+  protected void endOutput() {
+    flushOutput();
+    buffer = null;
+  }
+
+  /** Display a line of text, either buffering it for this test or writing it to the console. */
+  protected void println(String text) {
+    if (buffer != null) {
+      buffer.append(text).append(System.lineSeparator());
+    } else {
+      Output.println(text);
     }
-    fromreader.close();
-    towriter.close();
   }
 
   /** Display a header message on the console with a ruler extending to a fixed width. */
   protected void header(String msg) {
-    System.out.print(msg);
-    for (int i = msg.length(); i < 72; i++) {
-      System.out.print("=");
+    StringBuilder line = new StringBuilder(msg);
+    while (line.length() < 72) {
+      line.append('=');
     }
-    System.out.println();
+    println(line.toString());
   }
 
-  /** Display the contents of a file on standard output. */
+  /** The number of lines of a file that are displayed before asking whether to show more. */
+  private static final int PAGE_LINES = 100;
+
+  /** The maximum number of characters that are displayed from a single line of a file. */
+  private static final int MAX_LINE = 1000;
+
+  /**
+   * Display the contents of a file on standard output, one page at a time, asking the user after
+   * each page whether the rest of the file should be shown. Very long lines are truncated.
+   */
   protected void display(File file) throws Exception {
-    BufferedReader reader = new BufferedReader(new FileReader(file));
-    String str;
-    while ((str = reader.readLine()) != null) {
-      System.out.println(str);
+    try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+      String str;
+      for (int count = 0; (str = readLine(reader)) != null; count++) {
+        if (count > 0
+            && count % PAGE_LINES == 0
+            && ask("Show more of " + file.getPath(), "yn") != 'y') {
+          println("[rest of " + file.getPath() + " not shown]");
+          break;
+        }
+        println(str);
+      }
+    }
+  }
+
+  /**
+   * Read a line of text, returning null at the end of the input. Only the first MAX_LINE
+   * characters of the line are returned, with the rest replaced by an ellipsis.
+   */
+  private static String readLine(BufferedReader reader) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = reader.read()) >= 0 && c != '\n') {
+      if (line.length() < MAX_LINE) {
+        line.append((char) c);
+      } else if (line.length() == MAX_LINE) {
+        line.append(" ...");
+      }
     }
-    reader.close();
+    if (c < 0 && line.length() == 0) {
+      return null;
+    }
+    int last = line.length() - 1;
+    if (last >= 0 && line.charAt(last) == '\r') {
+      line.setLength(last);
+    }
+    return line.toString();
   }
 
   /** Display differences between two files. */
-  protected void diff(String msg, File expected, File actual) throws Exception {
+  protected void diff(String msg, File expected, File actual, int flags) throws Exception {
     header(msg);
-    ProcessBuilder pb = new ProcessBuilder("diff", "-c", expected.getPath(), actual.getPath());
-    pb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
-    pb.start().waitFor();
+    Diff.write(expected, actual, (flags & UNIFIED) != 0, (flags & LINES) != 0, this::println);
     header("");
   }
 
@@ -171,7 +319,9 @@ public abstract class Test {
   protected char ask(String question, String options) throws Exception {
     char c;
     do {
-      System.out.print(question + " [" + options + "]? ");
+      flushOutput();
+      Output.print(question + " [" + options + "]? ");
+      Output.flush();
       do {
         c = Character.toLowerCase((char) System.in.read());
       } while (c == '\n' || c == '\r');
@@ -201,12 +351,34 @@ public abstract class Test {
   /** TREE: 1=>show test tree summary at conclusion of tests. */
   public static final int TREE = 64;
 
+  /** STREAM: 1=>report test results in order of completion; 0=>report in test tree order. */
+  public static final int STREAM = 128;
+
+  /** LINES: 1=>compare outputs line by line, ignoring line endings; 0=>compare exact bytes. */
+  public static final int LINES = 256;
+
+  /** UPTODATE: 1=>only run tests whose fingerprints have changed since they last passed. */
+  public static final int UPTODATE = 512;
+
+  /** METRICS: 1=>measure the resources used by each test. */
+  public static final int METRICS = 1024;
+
+  /** DIFFS: 1=>write the differences for each failing test to a file in the actual folder. */
+  public static final int DIFFS = 2048;
+
+  /** UNIFIED: 1=>display differences in unified format; 0=>use context format. */
+  public static final int UNIFIED = 4096;
+
+  /** EARLY: 1=>compare outputs with expected results while each test is running. */
+  public static final int EARLY = 8192;
+
   /** Display a message at a specified nesting level. */
   private void message(int nesting, String msg) {
+    StringBuilder line = new StringBuilder();
     for (int i = 0; i < nesting; i++) {
-      System.out.print("....");
+      line.append("....");
     }
-    System.out.println(msg);
+    println(line.append(msg).toString());
   }
 
   /** Display a progress message. */
@@ -218,10 +390,17 @@ public abstract class Test {
 
   /** Display a failure message. */
   protected void failed(int flags, int nesting, String path, String context, String msg) {
+    failed(flags, nesting, FailureSummary.FAILED, path, context, msg);
+  }
+
+  /** Display a failure message for a specific kind of failure (see FailureSummary). */
+  protected void failed(
+      int flags, int nesting, int kind, String path, String context, String msg) {
     if ((flags & FAILED) == 0) {
-      String text = "FAILED " + path + ": " + msg;
-      message(nesting, text + " (failed " + (totalTests - totalPassed) + " of " + totalTests + ")");
-      Test.failures.add(new FailureSummary(text, context));
+      String text = FailureSummary.label(kind) + " " + path + ": " + msg;
+      int tests = totalTests.get();
+      message(nesting, text + " (failed " + (tests - totalPassed.get()) + " of " + tests + ")");
+      Test.failures.add(new FailureSummary(text, context, kind));
     }
   }
 
@@ -236,24 +415,40 @@ public abstract class Test {
     if ((flags & CONTEXT) == 0 && context != null && context.length > 0) {
       header("context");
       for (int i = 0; i < context.length; i++) {
-        System.out.println(context[i]);
+        println(context[i]);
       }
     }
   }
 
-  /** Tracks all of the failures reported since tester started. */
-  public static ArrayList<FailureSummary> failures = new ArrayList();
+  /**
+   * Tracks all of the failures reported since tester started. (Synchronized, because failures may
+   * be reported from worker threads.)
+   */
+  public static List<FailureSummary> failures =
+      Collections.synchronizedList(new ArrayList<FailureSummary>());
 
   /** Display a summary of all the failures that have been reported. */
   public static void displayFailures(int flags) {
-    int size = failures.size();
-    if (size > 0 && (flags & FAILED) == 0) {
-      System.out.println();
-      System.out.println("TOTAL number of problems reported: " + size);
-      for (FailureSummary f : failures) {
-        System.out.println("... " + f.text);
-        if (f.context.length() != 0) {
-          System.out.println("    context: " + f.context);
+    synchronized (failures) {
+      int size = failures.size();
+      if (size > 0 && (flags & FAILED) == 0) {
+        int timeouts = 0;
+        for (FailureSummary f : failures) {
+          if (f.kind == FailureSummary.TIMEOUT) {
+            timeouts++;
+          }
+        }
+        Output.println();
+        Output.println(
+            "TOTAL number of problems reported: "
+                + size
+                + ((timeouts == 1) ? " (including 1 timeout)" : "")
+                + ((timeouts > 1) ? (" (including " + timeouts + " timeouts)") : ""));
+        for (FailureSummary f : failures) {
+          Output.println("... " + f.text);
+          if (f.context.length() != 0) {
+            Output.println("    context: " + f.context);
+          }
         }
       }
     }
@@ -261,11 +456,31 @@ public abstract class Test {
 
   /**
    * Global statistics about the numbers of tests that have been run and passed since execution
-   * began.
+   * began. (Atomic, because tests may be run on worker threads.)
    */
-  public static int totalTests = 0;
+  public static final AtomicInteger totalTests = new AtomicInteger();
+
+  public static final AtomicInteger totalPassed = new AtomicInteger();
 
-  public static int totalPassed = 0;
+  /**
+   * Start executing this test (or the individual test cases that it contains) on the worker
+   * threads of the given scheduler. The results are collected, and reported in the usual order,
+   * by a subsequent call to run.
+   *
+   * @param scheduler is the pool of worker threads to use.
+   * @param expected is the folder where expected output files are stored.
+   * @param actual is the folder where actual output files are stored.
+   * @param path is the path name for this test case (for user display).
+   * @param nesting specifies the current nesting level (to determine indentation).
+   * @param flags specifies operating flags (RUNTESTS|INTERACT).
+   */
+  abstract void schedule(
+      Scheduler scheduler, File expected, File actual, String path, int nesting, int flags);
+
+  /**
+   * Skip this test, because testing has been stopped, so that it is not included in the results.
+   */
+  abstract void cancel() throws Exception;
 
   /**
    * Run this test using the specified parameters.
@@ -18,8 +18,28 @@
 */
 package tester;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 /** A single test case. */
 abstract class TestCase extends Test {
@@ -27,18 +47,28 @@ abstract class TestCase extends Test {
   /** The command line string to execute. */
   protected String cmd;
 
+  /** Settings for this test that were specified by directives in the tests file. */
+  protected Directives directives;
+
   /** Default constructor. */
-  TestCase(String name, String[] context, String cmd) {
+  TestCase(String name, String[] context, String cmd, Directives directives) {
     super(name, context);
     this.cmd = cmd;
+    this.directives = directives;
   }
 
+  /**
+   * Flag to indicate whether this test has been selected to run. Tests that are not selected (for
+   * example, because they belong to a different shard) are not run, and are not counted.
+   */
+  protected boolean selected = true;
+
   /**
    * Calculate the size of this test (i.e., the total number of individual TestCase objects that it
    * contains).
    */
   public int size() {
-    return 1;
+    return selected ? 1 : 0;
   }
 
   /** Flag to indicate whether this test passed or failed last time it was executed. */
@@ -49,52 +79,880 @@ abstract class TestCase extends Test {
     return passed ? 1 : 0;
   }
 
+  /** Calculate the total number of test cases in this test (including those not selected). */
+  public int numCases() {
+    return 1;
+  }
+
   /**
    * Display a tree with summary statistics for each section of a test set. (Poor complexity in
    * principle, but probably good enough in practice.)
    */
-  public void displayTestTree(int nesting) {}
+  public void displayTestTree(int nesting, int flags) {
+    if ((flags & METRICS) != 0 && selected) {
+      StringBuilder line = new StringBuilder();
+      for (int i = 0; i < nesting; i++) {
+        line.append("| ");
+      }
+      line.append(name + ": " + (passed ? "passed" : "failed"));
+      if (usage != null) {
+        line.append(" [" + usage + "]");
+      }
+      Output.println(line.toString());
+    }
+  }
 
-  /** Attempt to run a test that executes a command and captures output in the specified files. */
-  protected boolean execTest(
-      ArrayList<String> cmds,
-      String context,
-      File expected,
-      File actual,
-      String path,
-      int nesting,
-      int flags)
+  /** Resources used to run this test, or null if the test was not run. */
+  protected Usage usage;
+
+  /** Add the resources used by this test (if known) to the given total. */
+  void addUsage(Usage total) {
+    if (usage != null) {
+      total.add(usage);
+    }
+  }
+
+  /** Apply the given visitor to this test case. */
+  void visitCases(String path, BiConsumer<String, TestCase> visitor) {
+    visitor.accept(extendPath(path), this);
+  }
+
+  /**
+   * Write a description of this test and its result: P for passed, F for failed, T for timed out,
+   * or - if the test was not selected to run.
+   */
+  void writeResults(PrintWriter out, int nesting) {
+    String status = !selected ? "-" : passed ? "P" : timedOut ? "T" : "F";
+    out.println("case " + nesting + " " + status + " " + name);
+  }
+
+  /**
+   * Write the resources used by this test case to the given output, unless its command was not
+   * run (for example, because it was up to date, or shared the outputs of another test).
+   */
+  void writeMetrics(PrintWriter out, String run, String path) {
+    if (!selected || usage == null) {
+      return;
+    }
+    Usage u = usage;
+    String status = passed ? "passed" : timedOut ? "timeout" : "failed";
+    out.println(
+        run
+            + "\t"
+            + extendPath(path)
+            + "\t"
+            + status
+            + "\t"
+            + u.wall
+            + "\t"
+            + u.user
+            + "\t"
+            + u.sys
+            + "\t"
+            + u.peakRss);
+  }
+
+  /**
+   * Build the command line for this test, creating any files that are needed to run it in the
+   * specified actual output folder.
+   */
+  abstract ArrayList<String> prepare(File actual) throws Exception;
+
+  /** Return the message that is displayed at the start of this test. */
+  abstract String startMessage(File actual, String path);
+
+  /** Return a description of the command for this test, for use in failure reports. */
+  abstract String describe(File actual);
+
+  /** The pending result of executing this test on a worker thread, or null if not scheduled. */
+  private Future<Void> pending;
+
+  /** Set if the worker thread that executes this test will also report on the outcome. */
+  private boolean reportOnCompletion;
+
+  /** Start executing this test case on one of the worker threads of the given scheduler. */
+  void schedule(
+      Scheduler scheduler,
+      final File expected,
+      final File actual,
+      final String path,
+      final int nesting,
+      final int flags) {
+    if (!selected) {
+      return;
+    }
+    reportOnCompletion = (flags & (STREAM | INTERACT)) == STREAM;
+    counted = false;
+    pending =
+        scheduler.submit(
+            new Callable<Void>() {
+              public Void call() throws Exception {
+                if (stopped) {
+                  cancelled = true; // do not start any more tests once testing has been stopped
+                  if (reportOnCompletion) {
+                    selected = false;
+                  }
+                } else if (reportOnCompletion) {
+                  runTest(expected, actual, extendPath(path), nesting, flags, true);
+                } else {
+                  execTest(prepare(actual), expected, actual, flags);
+                  if (!cancelled && (flags & INTERACT) == 0 && !succeeded()) {
+                    // Count the failure now, so that fail-fast stops without waiting for the
+                    // results of earlier tests to be reported:
+                    counted = true;
+                    countFailure();
+                  }
+                }
+                return null;
+              }
+            },
+            extendPath(path));
+  }
+
+  /**
+   * Run this test using the specified parameters.
+   *
+   * @param expected is the folder where expected output files are stored.
+   * @param actual is the folder where actual output files are stored.
+   * @param path is the path name for this test case (for user display).
+   * @param nesting specifies the current nesting level (to determine indentation).
+   * @param flags specifies operating flags (RUNTESTS|INTERACT).
+   */
+  void run(File expected, File actual, String path, int nesting, int flags) throws Exception {
+    if (!selected) {
+      return;
+    } else if (pending == null) {
+      if (stopped) {
+        cancel();
+      } else {
+        runTest(expected, actual, extendPath(path), nesting, flags, true);
+      }
+    } else if (reportOnCompletion) {
+      await(); // results have already been reported by the worker thread
+    } else {
+      // Report the result, even if testing has since been stopped, unless the test was cancelled:
+      runTest(expected, actual, extendPath(path), nesting, flags, false);
+    }
+  }
+
+  /**
+   * Set if this test has already been counted as a failure by the worker thread that executed it.
+   */
+  private volatile boolean counted;
+
+  /**
+   * Determine whether this test succeeded when it was executed, without interaction. This agrees
+   * with the result of reportTest when INTERACT is not set.
+   */
+  private boolean succeeded() {
+    return !noAccess && !timedOut && !overflowed && outSame && errSame;
+  }
+
+  /**
+   * Execute this test (or wait for the results from a worker thread) and report on the outcome.
+   * All of the messages for this test are buffered and written to the console as a single block
+   * (except in interactive mode, where they are displayed immediately).
+   */
+  private void runTest(
+      File expected, File actual, String path, int nesting, int flags, boolean execute)
+      throws Exception {
+    beginOutput(flags);
+    try {
+      progress(flags, nesting, startMessage(actual, path));
+      if (execute) {
+        ArrayList<String> cmds = prepare(actual);
+        if (!reportOnCompletion) {
+          flushOutput(); // show progress before running the command
+        }
+        execTest(cmds, expected, actual, flags);
+      } else {
+        await();
+      }
+      if (cancelled) {
+        selected = false; // the test was stopped before it finished, so there is no result
+        discardOutput();
+        return;
+      }
+      passed = reportTest(describe(actual), expected, actual, path, nesting, flags);
+      if (!passed && !counted) {
+        countFailure();
+      }
+      counted = false;
+      if (usage != null) {
+        Scheduler.recordDuration(path, usage.wall);
+      }
+      if (fingerprint != null) {
+        // Record the fingerprint for a passing test so that it need not be run again with -u:
+        if (passed) {
+          fingerprints.put(new File(actual, name).getPath(), fingerprint);
+        } else {
+          fingerprints.remove(new File(actual, name).getPath());
+        }
+      }
+      progress(flags, 0, "");
+    } finally {
+      endOutput();
+      if ((flags & STREAM) != 0) {
+        Output.flush();
+      }
+    }
+  }
+
+  /**
+   * Skip this test because testing has been stopped, after waiting for any worker thread that will
+   * report on it to finish.
+   */
+  void cancel() throws Exception {
+    if (pending != null && reportOnCompletion) {
+      await(); // the worker thread reports on the test or cancels it
+    } else {
+      pending = null; // any process for this test has already been killed
+      selected = false;
+    }
+  }
+
+  /** Set if this test was stopped before it finished because testing was stopped. */
+  protected volatile boolean cancelled;
+
+  /** The maximum number of failing tests before testing is stopped (zero for no limit). */
+  static int maxFailures = 0;
+
+  /** The number of tests that have failed, for comparison with maxFailures. */
+  private static final AtomicInteger failureCount = new AtomicInteger();
+
+  /** Set when testing has been stopped because the maximum number of failures was reached. */
+  static volatile boolean stopped = false;
+
+  /** The processes for the tests that are currently running. */
+  protected static final Set<Process> running = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Record a failing test. If this reaches the maximum number of failures, then testing is stopped
+   * and any tests that are still running are killed.
+   */
+  private static void countFailure() throws InterruptedException {
+    if (maxFailures > 0 && failureCount.incrementAndGet() >= maxFailures) {
+      stopped = true;
+      for (Process process : running) {
+        if (running.remove(process)) {
+          kill(process);
+        }
+      }
+    }
+  }
+
+  /**
+   * Prepare to run tests again, as in --watch mode, by clearing the count of failures and the
+   * record of commands that have already been run.
+   */
+  static void restart() {
+    failureCount.set(0);
+    stopped = false;
+    invocations.clear();
+  }
+
+  /** Wait for the worker thread that is executing this test to finish. */
+  private void await() throws Exception {
+    try {
+      if (!pending.isDone()) {
+        Output.flush(); // show progress before waiting
+      }
+      pending.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    } finally {
+      pending = null;
+    }
+  }
+
+  /** Set if the files for capturing output could not be written when this test was executed. */
+  protected boolean noAccess;
+
+  /** Set if this test was stopped because it exceeded its time limit. */
+  protected boolean timedOut;
+
+  /** The default time limit for each test, in milliseconds (zero for no limit). */
+  static long defaultTimeout = 0;
+
+  /** Return the time limit for this test in milliseconds, or zero if there is no limit. */
+  long timeLimit() {
+    return (directives.timeout >= 0) ? directives.timeout : defaultTimeout;
+  }
+
+  /** Set if this test was stopped because its output exceeded the size limit. */
+  protected boolean overflowed;
+
+  /** The default limit on the size of each output of a test, in bytes (zero for no limit). */
+  static long defaultMaxOutput = 0;
+
+  /** Return the limit on the size of each output of this test, or zero if there is no limit. */
+  long outputLimit() {
+    return (directives.maxOutput >= 0) ? directives.maxOutput : defaultMaxOutput;
+  }
+
+  /** The maximum interval between samples of resource usage, in milliseconds. */
+  private static final long SAMPLE_INTERVAL = 100;
+
+  /**
+   * Wait for a process to finish, killing it (and all of its descendants) if it does not finish
+   * within the time limit for this test. Returns true if the process was killed. Resource usage
+   * is recorded in the usage field, sampling with increasing intervals if METRICS is set.
+   */
+  private boolean waitFor(Process process, int flags) throws InterruptedException {
+    long start = System.nanoTime();
+    long limit = timeLimit();
+    boolean sampling = (flags & METRICS) != 0;
+    CompletableFuture<Process> exit = process.onExit();
+    try {
+      if (!sampling && limit <= 0) {
+        awaitExit(exit, -1);
+        return false;
+      }
+      for (long interval = 1; ; interval = Math.min(2 * interval, SAMPLE_INTERVAL)) {
+        if (sampling) {
+          usage.sample(process);
+        }
+        long wait = interval;
+        if (limit > 0) {
+          long remaining = limit - (System.nanoTime() - start) / 1000000;
+          if (remaining <= 0) {
+            kill(process);
+            return true;
+          }
+          wait = sampling ? Math.min(interval, remaining) : remaining;
+        }
+        if (awaitExit(exit, wait)) {
+          return false;
+        }
+      }
+    } finally {
+      usage.wall = (System.nanoTime() - start) / 1000000;
+    }
+  }
+
+  /**
+   * Wait for a process to terminate, given the stage returned by its onExit method, for at most
+   * the given number of milliseconds (or with no limit if ms is negative), returning true if it
+   * has terminated. Unlike Process.waitFor, this does not tie a virtual thread to its carrier
+   * while it waits (see Threads).
+   */
+  static boolean awaitExit(CompletableFuture<Process> exit, long ms) throws InterruptedException {
+    try {
+      if (ms < 0) {
+        exit.get();
+      } else {
+        exit.get(ms, TimeUnit.MILLISECONDS);
+      }
+      return true;
+    } catch (TimeoutException e) {
+      return false;
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause()); // not expected: onExit does not fail
+    }
+  }
+
+  /** Set if this test was stopped as soon as its output differed from the expected output. */
+  protected volatile boolean stoppedEarly;
+
+  /** Threads that copy and compare the outputs of tests that are run with the EARLY flag. */
+  private static final ExecutorService tees = Threads.unbounded("tester-tee-");
+
+  /** Stop a process whose output has been found to differ from the expected output. */
+  private void stopEarly(Process process) {
+    if (process.isAlive()) {
+      stoppedEarly = true;
+      destroy(process);
+    }
+  }
+
+  /** Wait for the comparison of an output stream to finish, returning true if it matched. */
+  private static boolean join(Future<Boolean> tee) throws Exception {
+    try {
+      return tee.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Kill a process and all of its descendants without waiting for it to terminate. The process is
+   * killed through its handle so that any output streams that are still being copied are not
+   * closed; they will reach their end as soon as the process and its descendants exit.
+   */
+  private static void destroy(Process process) {
+    // Take a snapshot of the descendants before the process is killed (and they are orphaned):
+    ProcessHandle[] descendants = process.descendants().toArray(ProcessHandle[]::new);
+    process.toHandle().destroyForcibly();
+    for (ProcessHandle d : descendants) {
+      d.destroyForcibly();
+    }
+  }
+
+  /** Kill a process and all of its descendants, and then wait for it to terminate. */
+  static void kill(Process process) throws InterruptedException {
+    destroy(process);
+    awaitExit(process.onExit(), -1);
+  }
+
+  /** Records whether the captured standard output matched the expected output. */
+  protected boolean outSame;
+
+  /** Records whether the captured standard error matched the expected error output. */
+  protected boolean errSame;
+
+  /**
+   * The fingerprint of this test when it was last executed, or null if the test was not run. (See
+   * fingerprint() for details.)
+   */
+  private String fingerprint;
+
+  /**
+   * Add the files that this test depends on to the given collection: its inputs, and the program
+   * that it runs, if that is a file.
+   */
+  void addDependencies(Collection<String> files) {
+    files.addAll(directives.inputs);
+    if (cmd != null) {
+      ArrayList<String> words = new ArrayList<String>();
+      Test.addArgs(words, cmd);
+      if (!words.isEmpty() && new File(words.get(0)).isFile()) {
+        files.add(words.get(0));
+      }
+    }
+  }
+
+  /**
+   * Compute a fingerprint for this test, combining its command line, its context, and the size
+   * and modification time of each of its inputs (which includes the program that it runs, if that
+   * is a file) and of the given expected outputs. If the fingerprint is unchanged, then rerunning
+   * the test should produce the same results as before. The context is omitted if withContext is
+   * false, which (with no expected outputs) gives a fingerprint for the invocation of the command
+   * that does not depend on the description of the test.
+   */
+  private String fingerprint(ArrayList<String> cmds, boolean withContext, File... expected)
+      throws Exception {
+    MessageDigest md = MessageDigest.getInstance("SHA-256");
+    for (String arg : cmds) {
+      digest(md, "arg " + arg);
+    }
+    if (withContext) {
+      digestContext(md);
+    }
+    ArrayList<String> inputs = new ArrayList<String>(directives.inputs);
+    if (new File(cmds.get(0)).isFile()) {
+      inputs.add(cmds.get(0));
+    }
+    for (Filter filter : directives.filters) {
+      digest(md, "filter " + filter.spec);
+    }
+    for (String input : inputs) {
+      File f = new File(input);
+      digest(md, "input " + input);
+      digest(md, f.exists() ? (f.length() + " " + f.lastModified()) : "missing");
+    }
+    for (File f : expected) {
+      digest(md, "expected " + f.getPath());
+      digest(md, f.exists() ? (f.length() + " " + f.lastModified()) : "missing");
+    }
+    StringBuilder hex = new StringBuilder();
+    for (byte b : md.digest()) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Write the differences between the expected and actual outputs of this test to a file in the
+   * actual output folder, or remove that file if the outputs are the same.
+   */
+  private void writeDiffs(File expected, File actual, boolean outSame, boolean errSame, int flags) {
+    File file = new File(actual, name + ".diff");
+    if (outSame && errSame) {
+      file.delete();
+      return;
+    }
+    try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+      boolean unified = (flags & UNIFIED) != 0;
+      boolean lines = (flags & LINES) != 0;
+      String nameOut = name + ".out";
+      String nameErr = name + ".err";
+      if (!outSame) {
+        File from = expectedFile(expected, nameOut);
+        Diff.write(from, new File(actual, nameOut), unified, lines, out::println);
+      }
+      if (!errSame) {
+        File from = expectedFile(expected, nameErr);
+        Diff.write(from, new File(actual, nameErr), unified, lines, out::println);
+      }
+    } catch (IOException e) {
+      println("Unable to write file \"" + file.getPath() + "\"");
+    }
+  }
+
+  /** Add the context of this test, which determines its behavior, to a message digest. */
+  protected void digestContext(MessageDigest md) throws Exception {
+    for (int i = 0; i < context.length; i++) {
+      digest(md, "context " + context[i]);
+    }
+  }
+
+  /** Add a string, followed by a separator, to a message digest. */
+  private static void digest(MessageDigest md, String str) {
+    md.update(str.getBytes(StandardCharsets.UTF_8));
+    md.update((byte) 0);
+  }
+
+  /**
+   * Attempt to run a test that executes a command and captures output in the specified files,
+   * comparing the results with the expected outputs (if they exist). This method does not display
+   * any output, and may be called on a worker thread.
+   */
+  protected void execTest(ArrayList<String> cmds, File expected, File actual, int flags)
       throws Exception {
     String nameOut = name + ".out";
     File actualOut = new File(actual, nameOut);
     String nameErr = name + ".err";
     File actualErr = new File(actual, nameErr);
 
+    noAccess = timedOut = overflowed = outSame = errSame = cancelled = stoppedEarly = false;
+    fingerprint = null;
+    usage = null;
     if ((flags & RUNTESTS) != 0) {
       // Check that we can write to the files for capturing output:
       if (!checkFile(actualOut) || !checkFile(actualErr)) {
-        failed(flags, nesting, path, context, "Cannot access files for capturing output");
+        noAccess = true;
+        return;
+      }
+
+      // Run the command, unless the outputs from a previous run are known to be up to date:
+      File expectedOut = expectedFile(expected, nameOut);
+      File expectedErr = expectedFile(expected, nameErr);
+      fingerprint = fingerprint(cmds, true, expectedOut, expectedErr);
+      if ((flags & UPTODATE) == 0
+          || !fingerprint.equals(fingerprints.get(new File(actual, name).getPath()))
+          || !((actualOut.isFile() && actualErr.isFile()) || discarded(actual))) {
+        if (scratch != null) {
+          runInScratch(cmds, expectedOut, expectedErr, actualOut, actualErr, flags);
+          return;
+        }
+        if (!runOrShare(cmds, expectedOut, expectedErr, actualOut, actualErr, flags)) {
+          return;
+        }
+      }
+    }
+
+    File expectedOut = expectedFile(expected, nameOut);
+    File expectedErr = expectedFile(expected, nameErr);
+    if (discarded(actual)) {
+      // The test passed when it was last run, but that only counts if the expected outputs have
+      // not changed since (the fingerprint of the last passing run records their state):
+      String last = fingerprints.get(new File(actual, name).getPath());
+      outSame = errSame = last.equals(fingerprint(cmds, true, expectedOut, expectedErr));
+    } else if (expectedOut.isFile()
+        && expectedErr.isFile()
+        && actualOut.isFile()
+        && actualErr.isFile()) {
+      outSame = sameContent(actualOut, expectedOut, flags);
+      errSame = sameContent(actualErr, expectedErr, flags);
+    }
+  }
+
+  /**
+   * Determine whether the outputs of this test were discarded because it passed when it was last
+   * run with a scratch folder: neither output is in the actual folder, but the fingerprint that
+   * is recorded for a passing test is.
+   */
+  private boolean discarded(File actual) {
+    return !new File(actual, name + ".out").exists()
+        && !new File(actual, name + ".err").exists()
+        && fingerprints.get(new File(actual, name).getPath()) != null;
+  }
+
+  /** The folder where outputs are captured while tests run, or null to use the actual folder. */
+  static Scratch scratch = null;
+
+  /**
+   * Run the command for this test as described for runOrShare, but capturing its outputs in the
+   * scratch folder, and comparing them with the expected outputs there. The outputs are copied to
+   * the given actual files only if the test fails; otherwise, the outputs from any previous run
+   * are removed from the actual folder. (If memoize is set, the captured outputs are kept until
+   * the end of the run so that other tests can share them.)
+   */
+  private void runInScratch(
+      ArrayList<String> cmds,
+      File expectedOut,
+      File expectedErr,
+      File actualOut,
+      File actualErr,
+      int flags)
+      throws Exception {
+    File scratchOut = scratch.file(actualOut.getName());
+    File scratchErr = scratch.file(actualErr.getName());
+    try {
+      Files.deleteIfExists(actualOut.toPath());
+      Files.deleteIfExists(actualErr.toPath());
+      if (runOrShare(cmds, expectedOut, expectedErr, scratchOut, scratchErr, flags)
+          && expectedOut.isFile()
+          && expectedErr.isFile()) {
+        outSame = sameContent(scratchOut, expectedOut, flags);
+        errSame = sameContent(scratchErr, expectedErr, flags);
+      }
+      if (!cancelled && (timedOut || overflowed || !outSame || !errSame)) {
+        // Keep the outputs of a failing test, for reporting and for inspection after the run:
+        Files.copy(scratchOut.toPath(), actualOut.toPath());
+        Files.copy(scratchErr.toPath(), actualErr.toPath());
+      }
+    } catch (IOException e) {
+      noAccess = true;
+    } finally {
+      if (!memoize) {
+        scratch.remove(scratchOut, scratchErr);
+      }
+    }
+  }
+
+  /**
+   * Set if tests with identical commands (and inputs) should only be run once in each run of
+   * tester, with the outputs of the first shared by the others.
+   */
+  static boolean memoize = false;
+
+  /**
+   * Records the outcome of an invocation of a command so that it can be shared by other tests
+   * that use the same command.
+   */
+  private static class Invocation {
+
+    File out;
+
+    File err;
+
+    boolean timedOut;
+
+    boolean overflowed;
+
+    Invocation(File out, File err, boolean timedOut, boolean overflowed) {
+      this.out = out;
+      this.err = err;
+      this.timedOut = timedOut;
+      this.overflowed = overflowed;
+    }
+
+    /** Share the outputs of this invocation with another test, returning true on success. */
+    boolean shareWith(File actualOut, File actualErr) {
+      return share(out, actualOut) && share(err, actualErr);
+    }
+
+    /** Make a hard link to a file, or copy it if that is not possible. */
+    private static boolean share(File from, File to) {
+      try {
+        Files.deleteIfExists(to.toPath());
+        try {
+          Files.createLink(to.toPath(), from.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+          Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return true;
+      } catch (IOException e) {
         return false;
       }
+    }
+  }
+
+  /**
+   * Invocations that have been started in this run of tester, indexed by a fingerprint of the
+   * command and its inputs. Each entry is completed with the outcome when the command finishes,
+   * or with null if it was stopped early and the outputs should not be shared.
+   */
+  private static ConcurrentHashMap<String, CompletableFuture<Invocation>> invocations =
+      new ConcurrentHashMap<String, CompletableFuture<Invocation>>();
+
+  /**
+   * Run the command for this test as described for runCommand, except that, if memoize is set and
+   * an identical command has already been run, the outputs of that command are shared instead.
+   */
+  private boolean runOrShare(
+      ArrayList<String> cmds,
+      File expectedOut,
+      File expectedErr,
+      File actualOut,
+      File actualErr,
+      int flags)
+      throws Exception {
+    CompletableFuture<Invocation> owned = null;
+    if (memoize) {
+      String key = fingerprint(cmds, false) + " " + timeLimit() + " " + outputLimit();
+      CompletableFuture<Invocation> mine = new CompletableFuture<Invocation>();
+      CompletableFuture<Invocation> prior = invocations.putIfAbsent(key, mine);
+      if (prior == null) {
+        owned = mine;
+      } else {
+        if (!prior.isDone()) {
+          Output.flush(); // show progress before waiting
+        }
+        Invocation shared = prior.get();
+        if (shared != null && shared.shareWith(actualOut, actualErr)) {
+          timedOut = shared.timedOut;
+          overflowed = shared.overflowed;
+          return !timedOut && !overflowed;
+        }
+      }
+    }
+    Invocation result = null;
+    try {
+      boolean compare = runCommand(cmds, expectedOut, expectedErr, actualOut, actualErr, flags);
+      if (!cancelled && !stoppedEarly) {
+        result = new Invocation(actualOut, actualErr, timedOut, overflowed);
+      }
+      return compare;
+    } finally {
+      if (owned != null) {
+        owned.complete(result);
+      }
+    }
+  }
 
-      // Run the command:
-      ProcessBuilder pb = new ProcessBuilder(cmds);
+  /**
+   * Run the command for this test, writing its outputs to the given files, and returning true if
+   * the outputs should then be compared with the expected outputs, or false if the test was
+   * stopped, or if the outputs were already compared while the test was running.
+   */
+  protected boolean runCommand(
+      ArrayList<String> cmds,
+      File expectedOut,
+      File expectedErr,
+      File actualOut,
+      File actualErr,
+      int flags)
+      throws Exception {
+    boolean early = (flags & EARLY) != 0 && expectedOut.isFile() && expectedErr.isFile();
+    long limit = outputLimit();
+    boolean piped = early || limit > 0 || !directives.filters.isEmpty();
+    // Remove old outputs first, in case they are links that are shared with other tests:
+    Files.deleteIfExists(actualOut.toPath());
+    Files.deleteIfExists(actualErr.toPath());
+    ProcessBuilder pb = new ProcessBuilder(cmds);
+    if (!piped) {
       pb.redirectOutput(actualOut);
       pb.redirectError(actualErr);
-      pb.start().waitFor();
     }
-    totalTests++;
+    usage = new Usage();
+    Process process = pb.start();
+    running.add(process);
+    if (stopped && running.remove(process)) {
+      kill(process); // testing was stopped while this test was starting
+    }
+    Tee outTee = null;
+    Tee errTee = null;
+    Future<Boolean> out = null;
+    Future<Boolean> err = null;
+    if (piped) {
+      // Stop the test as soon as its output differs if it will be counted as a failure:
+      boolean lines = (flags & LINES) != 0;
+      Runnable stop =
+          (maxFailures > 0 && (flags & INTERACT) == 0) ? () -> stopEarly(process) : null;
+      Runnable overflow = () -> destroy(process);
+      outTee =
+          new Tee(
+              process.getInputStream(),
+              actualOut,
+              limit,
+              directives.filters,
+              early ? expectedOut : null,
+              lines,
+              stop,
+              overflow);
+      errTee =
+          new Tee(
+              process.getErrorStream(),
+              actualErr,
+              limit,
+              directives.filters,
+              early ? expectedErr : null,
+              lines,
+              stop,
+              overflow);
+      out = tees.submit(outTee);
+      err = tees.submit(errTee);
+    }
+    boolean killed = waitFor(process, flags);
+    if (piped) {
+      outSame = join(out);
+      errSame = join(err);
+      overflowed = outTee.overflowed() || errTee.overflowed();
+    }
+    if (!running.remove(process)) {
+      cancelled = true; // the process was killed because testing was stopped
+      return false;
+    }
+    if (overflowed) {
+      stoppedEarly = false;
+      return false;
+    }
+    if (killed) {
+      timedOut = true;
+      stoppedEarly = false;
+      return false;
+    }
+    if (early) {
+      return false; // outputs were compared while the test was running
+    }
+    return true;
+  }
+
+  /**
+   * Report on the outcome of a test that has already been executed, interacting with the user to
+   * update expected outputs if necessary, and returning true if the test passed.
+   */
+  protected boolean reportTest(
+      String context, File expected, File actual, String path, int nesting, int flags)
+      throws Exception {
+    if (noAccess) {
+      failed(flags, nesting, path, context, "Cannot access files for capturing output");
+      return false;
+    }
+    String nameOut = name + ".out";
+    File actualOut = new File(actual, nameOut);
+    String nameErr = name + ".err";
+    File actualErr = new File(actual, nameErr);
+    totalTests.incrementAndGet();
 
-    File expectedOut = new File(expected, nameOut);
-    File expectedErr = new File(expected, nameErr);
+    if (timedOut) {
+      long ms = timeLimit();
+      String limit = (ms % 1000 == 0) ? Long.toString(ms / 1000) : Double.toString(ms / 1000.0);
+      failed(
+          flags,
+          nesting,
+          FailureSummary.TIMEOUT,
+          path,
+          context,
+          "Test did not finish within " + limit + " seconds");
+      return false;
+    }
+    if (overflowed) {
+      failed(
+          flags,
+          nesting,
+          path,
+          context,
+          "Test output exceeded the limit of " + outputLimit() + " bytes");
+      return false;
+    }
+    File expectedOut = expectedFile(expected, nameOut);
+    File expectedErr = expectedFile(expected, nameErr);
     if (!expectedOut.exists()
         || !expectedOut.isFile()
         || !expectedErr.exists()
         || !expectedErr.isFile()) {
       if ((flags & INTERACT) != 0) {
         if (actualOut.canRead() && actualErr.canRead()) {
-          System.out.println(
-              "ISSUE for " + path + ": expected outputs for " + path + " are missing.");
+          println("ISSUE for " + path + ": expected outputs for " + path + " are missing.");
           showContext(flags);
           header("standard output");
           display(actualOut);
@@ -102,12 +960,12 @@ abstract class TestCase extends Test {
           display(actualErr);
           header("");
           if (ask("Use these outputs as the expected results", "yn") == 'y') {
-            copy(actualOut, expectedOut);
-            copy(actualErr, expectedErr);
+            saveExpected(actualOut, expected, nameOut);
+            saveExpected(actualErr, expected, nameErr);
             return true;
           }
         } else {
-          System.out.println(
+          println(
               "ISSUE for "
                   + path
                   + ": Expected and actual outputs are missing; use -r to run tests?");
@@ -116,18 +974,22 @@ abstract class TestCase extends Test {
       failed(flags, nesting, path, context, "Missing expected outputs");
       return false;
     }
-    boolean outSame = sameContent(actualOut, expectedOut);
-    boolean errSame = sameContent(actualErr, expectedErr);
+    boolean outSame = this.outSame;
+    boolean errSame = this.errSame;
+    if ((!outSame || !errSame) && (!actualOut.isFile() || !actualErr.isFile())) {
+      failed(flags, nesting, path, context, "Actual outputs are missing; use -r to run tests");
+      return false;
+    }
     if (!outSame || !errSame) {
       if ((flags & INTERACT) != 0) {
         boolean contextShown = false;
-        System.out.println("ISSUE for " + path + ": test did not produce expected outputs.");
+        println("ISSUE for " + path + ": test did not produce expected outputs.");
         if (!outSame) {
           showContext(flags);
           contextShown = true;
-          diff("standard output", expectedOut, actualOut);
+          diff("standard output", expectedOut, actualOut, flags);
           if (ask("Use new output as the expected result for " + path, "yn") == 'y') {
-            copy(actualOut, expectedOut);
+            saveExpected(actualOut, expected, nameOut);
             outSame = true;
           }
         }
@@ -135,21 +997,28 @@ abstract class TestCase extends Test {
           if (!contextShown) {
             showContext(flags);
           }
-          diff("standard error", expectedErr, actualErr);
+          diff("standard error", expectedErr, actualErr, flags);
           if (ask("Use new error output as expected results for " + path, "yn") == 'y') {
-            copy(actualErr, expectedErr);
+            saveExpected(actualErr, expected, nameErr);
             errSame = true;
           }
         }
       }
     }
+    if ((flags & DIFFS) != 0) {
+      writeDiffs(expected, actual, outSame, errSame, flags);
+    }
     if (outSame && errSame) {
-      totalPassed++;
+      int passed = totalPassed.incrementAndGet();
       progress(
-          flags, nesting, "PASSED " + path + " (passed " + totalPassed + " of " + totalTests + ")");
+          flags, nesting, "PASSED " + path + " (passed " + passed + " of " + totalTests.get() + ")");
       return true;
     } else {
-      failed(flags, nesting, path, context, "Test did not produce expected outputs");
+      String reason = "Test did not produce expected outputs";
+      if (stoppedEarly) {
+        reason += " (stopped when its output first differed)";
+      }
+      failed(flags, nesting, path, context, reason);
       return false;
     }
   }
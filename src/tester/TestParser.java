@@ -19,10 +19,19 @@
 package tester;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /** Code for parsing test cases from text files. */
 public class TestParser {
@@ -36,11 +45,20 @@ public class TestParser {
   /** Nesting level for this test parser. */
   private int nesting;
 
+  /** Directives that apply to all of the tests in this file. */
+  private Directives directives;
+
   /** Default constructor. */
   public TestParser(String filename, BufferedReader reader, int nesting) {
+    this(filename, reader, nesting, new Directives());
+  }
+
+  /** Construct a parser for a file whose tests inherit the specified directives. */
+  TestParser(String filename, BufferedReader reader, int nesting, Directives directives) {
     this.filename = filename;
     this.reader = reader;
     this.nesting = nesting;
+    this.directives = directives;
   }
 
   /** Indicates the end of file. */
@@ -58,7 +76,10 @@ public class TestParser {
   /** A line beginning with ".<ext>:" */
   private static final int CODE = 3;
 
-  /** Holds the type (TEXT/TESTS/COMMAND/CODE) of the most recently read line. */
+  /** A line beginning with "java:" */
+  private static final int JAVA = 4;
+
+  /** Holds the type (TEXT/TESTS/EXEC/CODE/JAVA) of the most recently read line. */
   private int type;
 
   /** Holds the text of the most recently read line. */
@@ -67,14 +88,27 @@ public class TestParser {
   /** The current line number. */
   private int lineNo = 0;
 
+  /** Set if the most recently read line should be returned again by the next call to nextLine. */
+  private boolean pushedBack = false;
+
   /** Display an error message and halt the program. */
   private void error(String msg) {
+    error(filename, lineNo, msg);
+  }
+
+  /** Display an error message for the given line of a file and halt the program. */
+  private static void error(String filename, int lineNo, String msg) {
+    Output.flush();
     System.err.println("ERROR in \"" + filename + "\", line " + lineNo + ":" + msg);
     System.exit(-1);
   }
 
   /** Read the next line from the input and return a code describing its type. */
   private int nextLine() {
+    if (pushedBack) {
+      pushedBack = false;
+      return type;
+    }
     try {
       if (line != null) {
         line = reader.readLine();
@@ -85,6 +119,8 @@ public class TestParser {
           return type = TESTS;
         } else if (matches("exec:")) {
           return type = EXEC;
+        } else if (matches("java:")) {
+          return type = JAVA;
         } else if (fileExt()) {
           return type = CODE;
         } else {
@@ -160,22 +196,89 @@ public class TestParser {
 
   /** Read a sequence of text lines from the input, skipping any preceding blank lines. */
   private String[] readContext() {
-    return readStrings(0);
+    ArrayList<String> strs = new ArrayList<String>();
+    while (nextLine() == TEXT) {
+      strs.add(line);
+    }
+    return strs.toArray(new String[strs.size()]);
+  }
+
+  /**
+   * Specify a limit on the number of lines in the body of a code test that will be held in memory.
+   * Longer bodies are written to a temporary file as they are read.
+   */
+  public static final int MAX_BODY_LINES = 10000;
+
+  /** Read the body of a code test, and use it to construct a new Code test case. */
+  private Code readCode(String n, String cmd, String ext, Directives d) {
+    ArrayList<String> strs = new ArrayList<String>();
+    File body = null;
+    PrintWriter spill = null;
+    try {
+      while (nextLine() == TEXT) {
+        if (spill != null) {
+          spill.println(line);
+        } else if (strs.size() < MAX_BODY_LINES) {
+          strs.add(line);
+        } else {
+          body = File.createTempFile("tester-", ext);
+          body.deleteOnExit();
+          spill = new PrintWriter(new BufferedWriter(new FileWriter(body)));
+          for (String str : strs) {
+            spill.println(str);
+          }
+          spill.println(line);
+          strs.clear();
+        }
+      }
+    } catch (IOException e) {
+      error("Cannot create temporary file for code test \"" + n + "\"");
+    }
+    if (spill != null) {
+      spill.close();
+      if (spill.checkError()) {
+        error("Cannot write temporary file for code test \"" + n + "\"");
+      }
+      record = null; // the temporary file will not outlive this run, so do not record it
+      return select(new Code(n, new String[0], body, cmd, ext, d), path, selector);
+    }
+    String[] context = strs.toArray(new String[strs.size()]);
+    record(context);
+    return select(new Code(n, context, null, cmd, ext, d), path, selector);
   }
 
   /**
-   * Read a sequence of text lines from the input, with parameter n specifying how many lines have
-   * been read already in this text block. (n should be zero for first call.)
+   * Read any directive lines at the current position in the input, returning a new set of
+   * directives that extends the given base. The first line that is not a directive will be
+   * returned again by the next call to nextLine (with the backslash removed, if it is an escaped
+   * directive).
    */
-  private String[] readStrings(int n) {
-    if (nextLine() == TEXT) { // Found a line of text
-      String str = line; // Read the nth text string
-      String[] strs = readStrings(n + 1); // Read the rest of the strings
-      strs[n] = str; // Save the nth text string
-      return strs;
-    } else { // At the end of the text block
-      return new String[n]; // Allocate array for strings
+  private Directives readDirectives(Directives base) {
+    Directives d = new Directives(base);
+    ArrayList<String> lines = new ArrayList<String>();
+    while (nextLine() == TEXT && Directives.isDirective(line)) {
+      String problem = d.apply(line);
+      if (problem != null) {
+        error(problem);
+      }
+      lines.add(line);
+    }
+    if (type == TEXT && Directives.isEscaped(line)) {
+      line = line.substring(1);
     }
+    pushedBack = true;
+    record(lines.toArray(new String[lines.size()]));
+    return d;
+  }
+
+  /** Apply directive lines from a snapshot record to extend the given base. */
+  private static Directives restoreDirectives(DataInputStream in, Directives base)
+      throws IOException {
+    Directives d = new Directives(base);
+    for (String line : Snapshot.readStrings(in)) {
+      d.apply(line);
+    }
+    return d;
   }
 
   /** Specify a limit on maximum nesting of test cases within test cases. */
@@ -189,21 +292,39 @@ public class TestParser {
           if (nesting >= MAX_NESTING) {
             error("Input exceeds maximum test file nesting (" + MAX_NESTING + " levels)");
           }
-          try {
-            TestSet folder = readTestSet(parent, name, nesting + 1);
-            readContext(); // Skip/discard context following the original "tests:" line.
-            return folder;
-          } catch (FileNotFoundException e) {
-            error("Test file \"" + name + "\" not found");
-            return null; /* not reached */
-          }
+          record(TESTS);
+          record(name);
+          record(lineNo);
+          TestSet folder =
+              nestedSet(parent, name, nesting + 1, directives, filename, lineNo, path, selector);
+          readContext(); // Skip/discard context following the original "tests:" line.
+          return folder;
         }
 
       case EXEC:
         {
           String n = name;
           String cmd = checkCommand();
-          return new Exec(n, readContext(), cmd);
+          record(EXEC);
+          record(n);
+          record(cmd);
+          Directives d = readDirectives(directives);
+          String[] context = readContext();
+          record(context);
+          return select(new Exec(n, context, cmd, d), path, selector);
+        }
+
+      case JAVA:
+        {
+          String n = name;
+          String cmd = checkCommand();
+          record(JAVA);
+          record(n);
+          record(cmd);
+          Directives d = readDirectives(directives);
+          String[] context = readContext();
+          record(context);
+          return select(new JavaMain(n, context, cmd, d), path, selector);
         }
 
       case CODE:
@@ -211,7 +332,11 @@ public class TestParser {
           String n = name;
           String ext = fileExt;
           String cmd = checkCommand();
-          return new Code(n, readContext(), cmd, ext);
+          record(CODE);
+          record(n);
+          record(ext);
+          record(cmd);
+          return readCode(n, cmd, ext, directives); // the body begins immediately
         }
 
       default:
@@ -242,35 +367,309 @@ public class TestParser {
     return line.substring(i);
   }
 
-  /** Read the rest of this file as an array of tests, having already read n tests. */
-  private Test[] parseTests(File parent, int n) throws Exception {
-    if (type == EOF) {
-      return new Test[n];
-    } else {
+  /** Read the rest of this file as an array of tests. */
+  private Test[] parseTests(File parent) throws Exception {
+    ArrayList<Test> tests = new ArrayList<Test>();
+    while (type != EOF) {
       Test test = parseTest(parent);
-      Test[] tests = parseTests(parent, n + 1);
-      tests[n] = test;
-      return tests;
+      if (test != null) { // omit nested sets that do not contain any selected tests
+        tests.add(test);
+      }
     }
+    record(EOF);
+    return tests.toArray(new Test[tests.size()]);
   }
 
   /** Parse the input as a TestSet: some explanatory text followed by some number of test cases. */
   private TestSet parseTestSet(File parent, String name) throws Exception {
+    directives = readDirectives(directives);
     String[] explain = readContext();
-    return new TestSet(name, explain, parseTests(parent, 0));
+    record(explain);
+    Test[] tests = parseTests(parent);
+    awaitNested(tests);
+    return new TestSet(name, explain, tests);
   }
 
-  /** Read a set of tests from the named file at the given nesting level. */
-  protected static TestSet readTestSet(File parent, String name, int nesting) throws Exception {
+  /**
+   * Rebuild a TestSet from a snapshot record of the tests file in the given folder, following the
+   * same steps as parseTestSet.
+   */
+  private static TestSet restoreTestSet(
+      DataInputStream in,
+      File parent,
+      String name,
+      int nesting,
+      Directives base,
+      String filename,
+      String path,
+      Selector selector)
+      throws IOException {
+    Directives directives = restoreDirectives(in, base);
+    String[] explain = Snapshot.readStrings(in);
+    ArrayList<Test> tests = new ArrayList<Test>();
+    for (int kind = in.readInt(); kind != EOF; kind = in.readInt()) {
+      String n = in.readUTF();
+      switch (kind) {
+        case TESTS:
+          {
+            int lineNo = in.readInt();
+            if (nesting >= MAX_NESTING) {
+              error(
+                  filename,
+                  lineNo,
+                  "Input exceeds maximum test file nesting (" + MAX_NESTING + " levels)");
+            }
+            TestSet folder =
+                nestedSet(parent, n, nesting + 1, directives, filename, lineNo, path, selector);
+            if (folder != null) {
+              tests.add(folder);
+            }
+            break;
+          }
+
+        case EXEC:
+          {
+            String cmd = in.readUTF();
+            Directives d = restoreDirectives(in, directives);
+            tests.add(select(new Exec(n, Snapshot.readStrings(in), cmd, d), path, selector));
+            break;
+          }
+
+        case JAVA:
+          {
+            String cmd = in.readUTF();
+            Directives d = restoreDirectives(in, directives);
+            tests.add(select(new JavaMain(n, Snapshot.readStrings(in), cmd, d), path, selector));
+            break;
+          }
+
+        case CODE:
+          {
+            String ext = in.readUTF();
+            String cmd = in.readUTF();
+            Code code = new Code(n, Snapshot.readStrings(in), null, cmd, ext, directives);
+            tests.add(select(code, path, selector));
+            break;
+          }
+
+        default:
+          throw new IOException("Damaged snapshot record for \"" + filename + "\"");
+      }
+    }
+    Test[] array = tests.toArray(new Test[tests.size()]);
+    awaitNested(array);
+    return new TestSet(name, explain, array);
+  }
+
+  /**
+   * Holds a record of the tests that have been read from this file, for use in the snapshot, or
+   * null if no record is being made.
+   */
+  private DataOutputStream record;
+
+  /** The buffer that holds the record, if there is one. */
+  private ByteArrayOutputStream recorded;
+
+  /** Add a number to the record for this file. */
+  private void record(int n) {
+    try {
+      if (record != null) {
+        record.writeInt(n);
+      }
+    } catch (IOException e) {
+      record = null;
+    }
+  }
+
+  /** Add a string to the record for this file. */
+  private void record(String str) {
+    try {
+      if (record != null) {
+        record.writeUTF(str);
+      }
+    } catch (IOException e) {
+      record = null; // a line that is too long to be recorded
+    }
+  }
+
+  /** Add an array of strings to the record for this file. */
+  private void record(String[] strs) {
+    try {
+      if (record != null) {
+        Snapshot.writeStrings(record, strs);
+      }
+    } catch (IOException e) {
+      record = null; // a line that is too long to be recorded
+    }
+  }
+
+  /** The snapshot of previously parsed tests files, or null if no snapshot is being used. */
+  public static Snapshot snapshot = null;
+
+  /**
+   * The path of the set of tests in this file, as displayed to the user and matched by selectors.
+   */
+  private String path;
+
+  /** Selects the tests in this file that should be run, or null if all tests should be run. */
+  private Selector selector;
+
+  /**
+   * Mark a test case that was read from the set of tests with the given path as selected or not,
+   * according to the selector, returning the test case.
+   */
+  private static <T extends TestCase> T select(T test, String path, Selector selector) {
+    test.selected = selector == null || selector.selects(test.extendPath(path));
+    return test;
+  }
+
+  /**
+   * Construct a TestSet for a nested set of tests, in the set with the given path, that is either
+   * being read in parallel or that will be read when it is first needed. Returns null, without
+   * reading the set, if the selector shows that it cannot contain any selected tests.
+   */
+  private static TestSet nestedSet(
+      File parent,
+      String name,
+      int nesting,
+      Directives directives,
+      String filename,
+      int lineNo,
+      String path,
+      Selector selector) {
+    path = path + File.separator + name;
+    if (selector != null && !selector.mayContain(path)) {
+      return null;
+    }
+    Load load = new Load(parent, name, nesting, directives, filename, lineNo, path, selector);
+    if (lazy) {
+      return new TestSet(name, load::invoke);
+    } else {
+      loaders.execute(load);
+      return new TestSet(name, load::join);
+    }
+  }
+
+  /** Wait for any nested test sets, which are being read in parallel, to be loaded. */
+  private static void awaitNested(Test[] tests) {
+    if (!lazy) {
+      for (int i = 0; i < tests.length; i++) {
+        if (tests[i] instanceof TestSet) {
+          ((TestSet) tests[i]).load();
+        }
+      }
+    }
+  }
+
+  /**
+   * Set to delay reading each nested set of tests until it is needed, instead of reading them all,
+   * in parallel, before any tests are run.
+   */
+  public static boolean lazy = false;
+
+  /** A pool of threads for reading nested sets of tests in parallel. */
+  private static final ForkJoinPool loaders =
+      new ForkJoinPool(4 * Runtime.getRuntime().availableProcessors());
+
+  /**
+   * A task that reads a nested set of tests, with the file name and line number of the "tests:"
+   * line that refers to it for use in error messages.
+   */
+  private static class Load extends RecursiveTask<TestSet> {
+    private static final long serialVersionUID = 1L;
+
+    private File parent;
+    private String name;
+    private int nesting;
+    private Directives directives;
+    private String filename;
+    private int lineNo;
+    private String path;
+    private Selector selector;
+
+    Load(
+        File parent,
+        String name,
+        int nesting,
+        Directives directives,
+        String filename,
+        int lineNo,
+        String path,
+        Selector selector) {
+      this.parent = parent;
+      this.name = name;
+      this.nesting = nesting;
+      this.directives = directives;
+      this.filename = filename;
+      this.lineNo = lineNo;
+      this.path = path;
+      this.selector = selector;
+    }
+
+    protected TestSet compute() {
+      try {
+        return readTestSet(parent, name, nesting, directives, path, selector);
+      } catch (FileNotFoundException e) {
+        error(filename, lineNo, "Test file \"" + name + "\" not found");
+        return null; /* not reached */
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  /**
+   * Read a set of tests with the given path from the named file at the given nesting level, with
+   * each test inheriting the specified directives, and with tests selected by the given selector.
+   */
+  protected static TestSet readTestSet(
+      File parent,
+      String name,
+      int nesting,
+      Directives directives,
+      String path,
+      Selector selector)
+      throws Exception {
     File folder = new File(parent, name);
     File tests = new File(folder, TestSet.root);
+    if (snapshot != null) {
+      DataInputStream in = snapshot.lookup(tests);
+      if (in != null) {
+        try {
+          return restoreTestSet(
+              in, folder, name, nesting, directives, tests.getPath(), path, selector);
+        } catch (IOException e) {
+          snapshot.remove(tests); // drop the damaged record, and parse the file again below
+        }
+      }
+    }
+    long size = tests.length(); // captured before reading, in case the file changes meanwhile
+    long modified = tests.lastModified();
     BufferedReader reader = new BufferedReader(new FileReader(tests));
-    TestParser parser = new TestParser(tests.getPath(), reader, nesting);
-    return parser.parseTestSet(folder, name);
+    TestParser parser = new TestParser(tests.getPath(), reader, nesting, directives);
+    parser.path = path;
+    parser.selector = selector;
+    if (snapshot != null) {
+      parser.recorded = new ByteArrayOutputStream();
+      parser.record = new DataOutputStream(parser.recorded);
+    }
+    TestSet set = parser.parseTestSet(folder, name);
+    if (parser.record != null) {
+      snapshot.put(tests, size, modified, parser.recorded.toByteArray());
+    }
+    return set;
   }
 
   /** Read a set of tests from the named file at the top level (nesting level zero). */
   public static TestSet readTestSet(File parent, String name) throws Exception {
-    return readTestSet(parent, name, 0);
+    return readTestSet(parent, name, null);
+  }
+
+  /**
+   * Read a set of tests from the named file at the top level, using the given selector (or null)
+   * to determine which tests should be run.
+   */
+  public static TestSet readTestSet(File parent, String name, Selector selector) throws Exception {
+    return readTestSet(parent, name, 0, new Directives(), name, selector);
   }
 }
@@ -19,6 +19,9 @@
 package tester;
 
 import java.io.File;
+import java.io.PrintWriter;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 /** A set of test cases. */
 class TestSet extends Test {
@@ -26,12 +29,34 @@ class TestSet extends Test {
   /** The collection of test cases. */
   private Test[] tests;
 
+  /**
+   * Reads the context and tests for this set if they have not been loaded yet, or null once they
+   * are available.
+   */
+  private Supplier<TestSet> loader;
+
   /** Default constructor. */
   TestSet(String name, String[] context, Test[] tests) {
     super(name, context);
     this.tests = tests;
   }
 
+  /** Construct a test set whose context and tests will be read by the given loader when needed. */
+  TestSet(String name, Supplier<TestSet> loader) {
+    super(name, null);
+    this.loader = loader;
+  }
+
+  /** Make sure that the context and tests for this set have been loaded. */
+  synchronized void load() {
+    if (loader != null) {
+      TestSet set = loader.get();
+      context = set.context;
+      tests = set.tests;
+      loader = null;
+    }
+  }
+
   /**
    * Records the number of individual tests in this TestSet (the sum of the number of tests in the
    * children). A negative value indicates that the size has not yet been computed.
@@ -43,6 +68,7 @@ class TestSet extends Test {
    * contains).
    */
   public int size() {
+    load();
     if (size < 0) {
       size = 0;
       for (int i = 0; i < tests.length; i++) {
@@ -60,6 +86,7 @@ class TestSet extends Test {
 
   /** Calculate the total number of test cases that have passed in this test. */
   public int numPassed() {
+    load();
     if (numPassed < 0) {
       numPassed = 0;
       for (int i = 0; i < tests.length; i++) {
@@ -69,23 +96,165 @@ class TestSet extends Test {
     return numPassed;
   }
 
+  /** Calculate the total number of test cases in this test (including those not selected). */
+  public int numCases() {
+    load();
+    int cases = 0;
+    for (int i = 0; i < tests.length; i++) {
+      cases += tests[i].numCases();
+    }
+    return cases;
+  }
+
+  /**
+   * Describe the number of selected test cases in this set and how many of them passed, together
+   * with the number of test cases that were skipped, if any (for example, because they belong to a
+   * different shard, or were not completed after testing was stopped).
+   */
+  String counts() {
+    int skipped = numCases() - size();
+    return "passed "
+        + numPassed()
+        + " of "
+        + size()
+        + " tests"
+        + ((skipped > 0) ? (" (" + skipped + " skipped)") : "");
+  }
+
   /**
    * Display a tree with summary statistics for each section of a test set. (Poor complexity in
    * principle, but probably good enough in practice.)
    */
-  public void displayTestTree(int nesting) {
+  public void displayTestTree(int nesting, int flags) {
+    load();
+    StringBuilder line = new StringBuilder();
     for (int i = 0; i < nesting; i++) {
-      System.out.print("| ");
+      line.append("| ");
+    }
+    String alert = (numPassed() != size()) ? "  <<<<<<<" : "";
+    line.append(name + ": " + counts());
+    if ((flags & METRICS) != 0) {
+      Usage total = new Usage();
+      addUsage(total);
+      line.append(" [" + total + "]");
+    }
+    Output.println(line.append(alert).toString());
+    for (int i = 0; i < tests.length; i++) {
+      tests[i].displayTestTree(nesting + 1, flags);
+    }
+  }
+
+  /** Add the resources used by all of the tests in this set to the given total. */
+  void addUsage(Usage total) {
+    load();
+    for (int i = 0; i < tests.length; i++) {
+      tests[i].addUsage(total);
+    }
+  }
+
+  /** Apply the given visitor to each of the test cases in this set. */
+  void visitCases(String path, BiConsumer<String, TestCase> visitor) {
+    load();
+    path = extendPath(path);
+    for (int i = 0; i < tests.length; i++) {
+      tests[i].visitCases(path, visitor);
     }
-    int n = numPassed();
-    int s = size();
-    String alert = (n != s) ? "  <<<<<<<" : "";
-    System.out.println(name + ": passed " + n + " of " + s + " tests" + alert);
+  }
+
+  /** Write a description of this set and the results of its tests. */
+  void writeResults(PrintWriter out, int nesting) {
+    load();
+    out.println("set " + nesting + " " + name);
+    for (int i = 0; i < tests.length; i++) {
+      tests[i].writeResults(out, nesting + 1);
+    }
+  }
+
+  /** Write the resources used by each test case in this set to the given output. */
+  void writeMetrics(PrintWriter out, String run, String path) {
+    load();
+    path = extendPath(path);
     for (int i = 0; i < tests.length; i++) {
-      tests[i].displayTestTree(nesting + 1);
+      tests[i].writeMetrics(out, run, path);
     }
   }
 
+  /**
+   * Check that the names of the tests in this set are valid, returning a description of the
+   * problem if they are not, or null if there are no problems.
+   */
+  private String checkNames() {
+    for (int i = 0; i < tests.length; i++) {
+      if (tests[i].name.equals(TestSet.root)) {
+        return "Test name \"" + TestSet.root + "\" is reserved";
+      }
+      for (int j = i + 1; j < tests.length; j++) {
+        if (tests[i].name.equals(tests[j].name)) {
+          return "Multiple subtests called \"" + tests[i].name + "\"";
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Start executing the tests in this set on the worker threads of the given scheduler. Problems
+   * with the output folders or test names are not reported here, but are detected and reported by
+   * run, which also skips the affected tests. If the set has not been loaded yet (with --lazy),
+   * its tests are scheduled by run instead, when the run reaches this set.
+   */
+  void schedule(
+      Scheduler scheduler, File expected, File actual, String path, int nesting, int flags) {
+    synchronized (this) {
+      if (loader != null) {
+        deferred = scheduler; // with --lazy, schedule these tests only when the run reaches them
+        return;
+      }
+    }
+    scheduleTests(
+        scheduler,
+        new File(expected, name),
+        new File(actual, name),
+        extendPath(path),
+        nesting,
+        flags);
+  }
+
+  /**
+   * The scheduler for the tests in this set if scheduling was deferred because the set had not
+   * been loaded, or null otherwise.
+   */
+  private Scheduler deferred;
+
+  /** Schedule the tests in this set, with the folders and path for this set already computed. */
+  private void scheduleTests(
+      Scheduler scheduler, File expectedDir, File actualDir, String path, int nesting, int flags) {
+    if (makeDirectory(expectedDir) && makeDirectory(actualDir) && checkNames() == null) {
+      Code.materialize(tests, actualDir);
+      materialized = true;
+      for (int i = 0; i < tests.length; i++) {
+        tests[i].schedule(scheduler, expectedDir, actualDir, path, nesting + 1, flags);
+      }
+    }
+  }
+
+
+  /** Set if the source files for the code tests in this set were written by schedule. */
+  private boolean materialized;
+
+  /** Skip all of the tests in this set, without reading them if they have not been loaded. */
+  synchronized void cancel() throws Exception {
+    deferred = null;
+    if (loader != null) {
+      loader = null;
+      tests = new Test[0];
+    }
+    for (int i = 0; i < tests.length; i++) {
+      tests[i].cancel();
+    }
+    size = numPassed = (-1);
+  }
+
   /** Name of root file where tests are stored. */
   public static final String root = "tests";
 
@@ -99,11 +268,24 @@ class TestSet extends Test {
    * @param flags specifies operating flags (RUNTESTS|INTERACT).
    */
   void run(File expected, File actual, String path, int nesting, int flags) throws Exception {
-    path = extendPath(path);
+    if (TestCase.stopped) {
+      cancel();
+      return;
+    }
+    runTests(expected, actual, extendPath(path), nesting, flags);
+    if (nesting > 0) {
+      progress(flags, 0, ""); // separate the output for a nested set from what follows
+    }
+  }
+
+  /** Run the tests in this set, with the path for this set already computed. */
+  private void runTests(File expected, File actual, String path, int nesting, int flags)
+      throws Exception {
+    load();
 
     // Print message to indicate start of test:
     progress(flags, nesting, "Test set " + path + " contains " + tests.length + " tests:");
-    numPassed = (-1); // reset counts from a previous run
+    size = numPassed = (-1); // reset counts from a previous run
 
     // Check that we can access expected and actual folders:
     File expectedDir = new File(expected, name);
@@ -117,24 +299,29 @@ class TestSet extends Test {
     }
 
     // Check for duplicate test names
-    for (int i = 0; i < tests.length; i++) {
-      if (tests[i].name.equals(TestSet.root)) {
-        failed(flags, nesting, path, "", "Test name \"" + TestSet.root + "\" is reserved");
-        return;
-      }
-      for (int j = i + 1; j < tests.length; j++) {
-        if (tests[i].name.equals(tests[j].name)) {
-          failed(flags, nesting, path, "", "Multiple subtests called \"" + tests[i].name + "\"");
-          return;
-        }
-      }
+    String problem = checkNames();
+    if (problem != null) {
+      failed(flags, nesting, path, "", problem);
+      return;
     }
 
-    // Run individual tests:
+    // Start the tests in a set that was loaded lazily, now that the run has reached it:
+    if (deferred != null) {
+      Scheduler scheduler = deferred;
+      deferred = null;
+      scheduleTests(scheduler, expectedDir, actualDir, path, nesting, flags);
+      scheduler.dispatch();
+    }
+
+    // Write the source files for code tests (if not already done by schedule), and then run
+    // individual tests:
+    if (!materialized) {
+      Code.materialize(tests, actualDir);
+    }
+    materialized = false;
     for (int i = 0; i < tests.length; i++) {
       tests[i].run(expectedDir, actualDir, path, nesting + 1, flags);
-      progress(flags, 0, "");
     }
-    summary(flags, nesting, path + ": passed " + numPassed() + " of " + size() + " tests");
+    summary(flags, nesting, path + ": " + counts());
   }
 }
@@ -0,0 +1,101 @@
+/*
+    Copyright 2018 Mark P Jones, Portland State University
+
+    This file is part of tester.
+
+    tester is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    tester is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with tester.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package tester;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads that tester uses to supervise running tests: the workers that run tests in
+ * parallel, and the threads that copy the outputs of each test. Most of these threads spend their
+ * time blocked, waiting for a process to finish or to produce more output, so virtual threads are
+ * used when the JVM supports them (Java 21 and later), and tester can then run many tests at once
+ * without an operating system thread for each of them. Virtual threads are found by reflection so
+ * that tester can still be built and run on earlier versions, where daemon platform threads are
+ * used instead.
+ */
+class Threads {
+
+  /** Builds virtual threads, or null if they are not supported by this JVM. */
+  private static final Object virtualBuilder = virtualBuilder();
+
+  /** Set if the threads that are created are virtual threads. */
+  static final boolean virtual = virtualBuilder != null;
+
+  /** Find a builder for virtual threads, returning null if they are not supported. */
+  private static Object virtualBuilder() {
+    try {
+      return Thread.class.getMethod("ofVirtual").invoke(null);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * Return a factory for threads whose names start with the given prefix followed by a number.
+   * Platform threads are daemon threads, so that they do not keep tester alive if main exits early
+   * (virtual threads are always daemon threads).
+   */
+  static ThreadFactory factory(String prefix) {
+    if (virtual) {
+      try {
+        Class<?> builder = Class.forName("java.lang.Thread$Builder");
+        Object named =
+            builder
+                .getMethod("name", String.class, long.class)
+                .invoke(virtualBuilder, prefix, 1L);
+        return (ThreadFactory) builder.getMethod("factory").invoke(named);
+      } catch (Exception e) {
+        // fall back to platform threads
+      }
+    }
+    AtomicInteger count = new AtomicInteger();
+    return r -> {
+      Thread t = new Thread(r, prefix + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+  }
+
+  /**
+   * Return an executor that runs each task in a thread of its own (reusing idle platform threads
+   * if virtual threads are not supported), with names that start with the given prefix.
+   */
+  static ExecutorService unbounded(String prefix) {
+    ThreadFactory factory = factory(prefix);
+    if (virtual) {
+      try {
+        return (ExecutorService)
+            Executors.class
+                .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                .invoke(null, factory);
+      } catch (Exception e) {
+        // fall back to a cached pool
+      }
+    }
+    return Executors.newCachedThreadPool(factory);
+  }
+
+  /** Return an executor that runs at most the given number of tasks at a time. */
+  static ExecutorService bounded(String prefix, int threads) {
+    return Executors.newFixedThreadPool(threads, factory(prefix));
+  }
+}
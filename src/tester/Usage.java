@@ -0,0 +1,160 @@
+/*
+    Copyright 2018 Mark P Jones, Portland State University
+
+    This file is part of tester.
+
+    tester is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    tester is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with tester.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package tester;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Records the resources (wall clock time, CPU time, and peak memory) that were used to run a test.
+ * CPU time and memory use are sampled from /proc while the test is running, where that is
+ * available (i.e., on Linux), and include any processes that the test command starts. Processes
+ * that start and finish between samples will be missed, so these figures are lower bounds.
+ */
+class Usage {
+
+  /** Elapsed (wall clock) time, in milliseconds. */
+  long wall = (-1);
+
+  /** User CPU time, in milliseconds, or -1 if not known. */
+  long user = (-1);
+
+  /** System CPU time, in milliseconds, or -1 if not known. */
+  long sys = (-1);
+
+  /** Peak resident set size, in kilobytes, or -1 if not known. */
+  long peakRss = (-1);
+
+  /** Set if process statistics can be read from /proc. */
+  private static final boolean procfs = new File("/proc/self/stat").canRead();
+
+  /** Length of a clock tick in /proc/[pid]/stat, in milliseconds. */
+  private static final double TICK = 1000.0 / clockTicks();
+
+  /** The key for the number of clock ticks per second (USER_HZ) in an auxiliary vector. */
+  private static final long AT_CLKTCK = 17;
+
+  /**
+   * Return the number of clock ticks per second that the kernel uses for CPU times in /proc, which
+   * is passed to every process in its auxiliary vector (the same value that sysconf(_SC_CLK_TCK)
+   * returns). If that cannot be read, return 100, which is the value on almost every Linux system.
+   */
+  private static long clockTicks() {
+    if (procfs) {
+      try {
+        boolean wide = !"32".equals(System.getProperty("sun.arch.data.model"));
+        ByteBuffer auxv = ByteBuffer.wrap(Files.readAllBytes(new File("/proc/self/auxv").toPath()));
+        auxv.order(ByteOrder.nativeOrder());
+        while (auxv.remaining() >= (wide ? 16 : 8)) {
+          long key = wide ? auxv.getLong() : auxv.getInt();
+          long value = wide ? auxv.getLong() : auxv.getInt();
+          if (key == AT_CLKTCK && value > 0) {
+            return value;
+          } else if (key == 0) {
+            break; // AT_NULL marks the end of the vector
+          }
+        }
+      } catch (Exception e) {
+        // use the default
+      }
+    }
+    return 100;
+  }
+
+  /** Latest user and system CPU times (in ticks) that have been seen for each process. */
+  private Map<Long, long[]> cpu = new HashMap<Long, long[]>();
+
+  /** Sample the resources used by a running process and all of its descendants. */
+  void sample(Process process) {
+    if (procfs) {
+      sample(process.pid());
+      process.descendants().forEach(p -> sample(p.pid()));
+      long u = 0;
+      long s = 0;
+      for (long[] times : cpu.values()) {
+        u += times[0];
+        s += times[1];
+      }
+      user = Math.round(u * TICK);
+      sys = Math.round(s * TICK);
+    } else {
+      Optional<Duration> total = process.info().totalCpuDuration();
+      if (total.isPresent()) {
+        user = total.get().toMillis(); // no separate figure for system time
+      }
+    }
+  }
+
+  /** Sample the resources used by a single process (ignoring any errors). */
+  private void sample(long pid) {
+    try {
+      String stat = new String(Files.readAllBytes(new File("/proc/" + pid + "/stat").toPath()));
+      // Fields after the command name, which is in parentheses and may contain spaces:
+      String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+      cpu.put(pid, new long[] {Long.parseLong(fields[11]), Long.parseLong(fields[12])});
+      for (String line :
+          Files.readAllLines(
+              new File("/proc/" + pid + "/status").toPath(), StandardCharsets.ISO_8859_1)) {
+        if (line.startsWith("VmHWM:")) {
+          String kb = line.substring(6).trim();
+          peakRss = Math.max(peakRss, Long.parseLong(kb.substring(0, kb.indexOf(' '))));
+        }
+      }
+    } catch (Exception e) {
+      // The process may have finished, or /proc may not have the expected format.
+    }
+  }
+
+  /** Add the figures from another set of statistics to these (taking the maximum peak RSS). */
+  void add(Usage other) {
+    wall = sum(wall, other.wall);
+    user = sum(user, other.user);
+    sys = sum(sys, other.sys);
+    peakRss = Math.max(peakRss, other.peakRss);
+  }
+
+  /** Add two figures, either of which may be -1 if not known. */
+  private static long sum(long x, long y) {
+    return (x < 0) ? y : (y < 0) ? x : (x + y);
+  }
+
+  /** Format a time in milliseconds as a number of seconds. */
+  static String seconds(long ms) {
+    return (ms < 0) ? "-" : String.format("%.2fs", ms / 1000.0);
+  }
+
+  /** Return a short, human readable summary of these statistics. */
+  public String toString() {
+    return seconds(wall)
+        + " wall, "
+        + seconds(user)
+        + " user, "
+        + seconds(sys)
+        + " sys, "
+        + ((peakRss < 0) ? "-" : (peakRss + "kB"))
+        + " peak RSS";
+  }
+}
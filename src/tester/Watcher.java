@@ -0,0 +1,124 @@
+/*
+    Copyright 2018 Mark P Jones, Portland State University
+
+    This file is part of tester.
+
+    tester is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    tester is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with tester.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package tester;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the files that a collection of tests depends on (the tests files themselves, the inputs
+ * of each test, and the programs that they run) for use in --watch mode. A WatchService can only
+ * watch folders, so the folders that contain these files are registered, and events for other
+ * files in those folders are ignored.
+ */
+class Watcher {
+
+  /** The number of milliseconds without further changes before a batch of changes is reported. */
+  private static final long QUIET = 300;
+
+  /** The service that reports changes in the watched folders. */
+  private final WatchService service;
+
+  /** The folders that have been registered with the watch service. */
+  private final HashSet<Path> folders = new HashSet<Path>();
+
+  /** The files that are being watched, as normalized absolute paths. */
+  private final HashSet<Path> files = new HashSet<Path>();
+
+  /** Default constructor. */
+  Watcher() throws IOException {
+    service = FileSystems.getDefault().newWatchService();
+  }
+
+  /**
+   * Watch the files that the given tests depend on, replacing any files that were being watched
+   * before. Folders that are no longer needed remain registered, but changes in them are ignored.
+   */
+  void watch(List<TestSet> roots) throws IOException {
+    HashSet<String> names = new HashSet<String>();
+    for (TestSet root : roots) {
+      names.add(new File(root.name, TestSet.root).getPath());
+      root.visitCases(
+          "",
+          (path, test) -> {
+            names.add(new File(new File(path).getParentFile(), TestSet.root).getPath());
+            test.addDependencies(names);
+          });
+    }
+    files.clear();
+    for (String name : names) {
+      Path file = new File(name).toPath().toAbsolutePath().normalize();
+      Path folder = file.getParent();
+      if (folder != null && folder.toFile().isDirectory()) {
+        files.add(file);
+        if (folders.add(folder)) {
+          folder.register(
+              service,
+              StandardWatchEventKinds.ENTRY_CREATE,
+              StandardWatchEventKinds.ENTRY_MODIFY,
+              StandardWatchEventKinds.ENTRY_DELETE);
+        }
+      }
+    }
+  }
+
+  /**
+   * Wait for changes to the watched files, and return a description of the files that changed.
+   * Changes are collected until there have been none for a short period, so that a burst of
+   * changes (for example, from rebuilding a program) is reported only once.
+   */
+  String await() throws InterruptedException {
+    TreeSet<String> changed = new TreeSet<String>();
+    while (changed.isEmpty()) {
+      WatchKey key = service.take();
+      do {
+        collect(key, changed);
+      } while ((key = service.poll(QUIET, TimeUnit.MILLISECONDS)) != null);
+    }
+    return String.join(", ", changed);
+  }
+
+  /** Add the watched files that have changed, according to the events for a key, to a set. */
+  private void collect(WatchKey key, TreeSet<String> changed) {
+    Path folder = (Path) key.watchable();
+    Path cwd = new File("").toPath().toAbsolutePath();
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        // Some events were lost, so assume that any of the files in this folder might have changed:
+        changed.add(cwd.relativize(folder).toString());
+      } else {
+        Path file = folder.resolve((Path) event.context());
+        if (files.contains(file)) {
+          changed.add(cwd.relativize(file).toString());
+        }
+      }
+    }
+    key.reset();
+  }
+}
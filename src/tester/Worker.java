@@ -0,0 +1,446 @@
+/*
+    Copyright 2018 Mark P Jones, Portland State University
+
+    This file is part of tester.
+
+    tester is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    tester is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with tester.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package tester;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.security.Permission;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+
+/**
+ * The main program for a worker JVM, which runs the main methods of Java programs under test on
+ * behalf of tester, so that each test does not have to pay the cost of starting a new JVM. Each
+ * request, read from standard input, names a class path, a main class, its arguments, and the
+ * files for its outputs. The program is loaded by a new class loader, with its own standard
+ * input, output, and error streams, and runs in its own thread group. A call to System.exit (which
+ * is intercepted by a security manager), or the end of the last non-daemon thread in the group,
+ * finishes the run, after which any shutdown hooks that the program registered are run, and the
+ * global state of the JVM (streams, system properties, default locale and time zone) is restored.
+ * If any of the program's threads are still running at that point, then the worker reports that
+ * it is retiring, and exits, so that they cannot affect later runs.
+ */
+public class Worker {
+
+  /** Reply indicating that a run has finished, and that the worker is ready for another. */
+  static final int READY = 0;
+
+  /** Reply indicating that a run has finished, but that the worker will now exit. */
+  static final int RETIRING = 1;
+
+  /** Reply indicating that the run was stopped because an output exceeded its limit. */
+  static final int OVERFLOWED = 2;
+
+  /** The stream for replies to tester. */
+  private static DataOutputStream reply;
+
+  /** The thread group for the current run, or null if there is no run in progress. */
+  private static volatile ThreadGroup group;
+
+  /** Used to signal the end of a run. */
+  private static final Object lock = new Object();
+
+  /** Set when the program calls System.exit. */
+  private static boolean exited;
+
+  /** Set when the worker itself is about to exit, so that the exit is not intercepted. */
+  private static volatile boolean halting = false;
+
+  /** Main program for a worker JVM. */
+  @SuppressWarnings("removal")
+  public static void main(String[] args) throws Exception {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+    reply =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+    System.setSecurityManager(new Guard());
+    for (; ; ) {
+      String classpath;
+      try {
+        classpath = in.readUTF();
+      } catch (EOFException e) {
+        halt(); // tester has finished
+        return;
+      }
+      String mainClass = in.readUTF();
+      String[] argv = new String[in.readInt()];
+      for (int i = 0; i < argv.length; i++) {
+        argv[i] = in.readUTF();
+      }
+      File out = new File(in.readUTF());
+      File err = new File(in.readUTF());
+      long limit = in.readLong();
+      boolean clean = run(classpath, mainClass, argv, out, err, limit);
+      synchronized (reply) {
+        reply.writeInt(clean ? READY : RETIRING);
+        reply.flush();
+      }
+      if (!clean) {
+        halt();
+      }
+    }
+  }
+
+  /** Exit from the worker JVM immediately. */
+  private static void halt() {
+    halting = true;
+    Runtime.getRuntime().halt(0);
+  }
+
+  /**
+   * Run the main method of a class, with its outputs captured in the given files, returning true
+   * if the run finished without leaving any threads behind.
+   */
+  private static boolean run(
+      String classpath, String mainClass, String[] args, File outFile, File errFile, long limit)
+      throws Exception {
+    // Save global state that the program might change:
+    PrintStream stdout = System.out;
+    PrintStream stderr = System.err;
+    InputStream stdin = System.in;
+    Properties props = (Properties) System.getProperties().clone();
+    Locale locale = Locale.getDefault();
+    TimeZone timeZone = TimeZone.getDefault();
+    Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+    Map<Thread, Thread> hooks = hooks();
+    HashSet<Thread> oldHooks = new HashSet<Thread>();
+    if (hooks != null) {
+      oldHooks.addAll(hooks.keySet());
+    }
+
+    ThreadGroup g =
+        new ThreadGroup("main") {
+          public void uncaughtException(Thread t, Throwable e) {
+            if (!(e instanceof Exit)) {
+              super.uncaughtException(t, e); // report as the JVM would, on the captured stderr
+            }
+          }
+        };
+    boolean clean;
+    try (Capture out = new Capture(outFile, limit);
+        Capture err = new Capture(errFile, limit);
+        URLClassLoader loader =
+            new URLClassLoader(classPath(classpath), ClassLoader.getPlatformClassLoader())) {
+      PrintStream pout = new PrintStream(new BufferedOutputStream(out, 8192), true);
+      PrintStream perr = new PrintStream(new BufferedOutputStream(err, 8192), true);
+      System.setOut(pout);
+      System.setErr(perr);
+      System.setIn(new ByteArrayInputStream(new byte[0]));
+      Method main = findMain(loader, mainClass);
+      if (main != null) {
+        synchronized (lock) {
+          exited = false;
+          group = g;
+        }
+        Thread t = new Thread(g, () -> invoke(main, mainClass, args), "main");
+        t.setContextClassLoader(loader);
+        t.start();
+        awaitThreads(g);
+        runHooks(hooks, oldHooks);
+        synchronized (lock) {
+          group = null;
+        }
+      }
+      synchronized (Capture.class) {
+        pout.flush();
+        perr.flush();
+      }
+      clean = g.activeCount() == 0;
+    } finally {
+      System.setOut(stdout);
+      System.setErr(stderr);
+      System.setIn(stdin);
+      System.setProperties(props);
+      Locale.setDefault(locale);
+      TimeZone.setDefault(timeZone);
+      Thread.setDefaultUncaughtExceptionHandler(handler);
+    }
+    return clean;
+  }
+
+  /**
+   * Return the URLs for a class path, interpreted in the same way as the java command, with "*"
+   * standing for all of the jar files in a folder, and the CLASSPATH environment variable (or the
+   * current folder) used if the class path is empty.
+   */
+  private static URL[] classPath(String classpath) throws IOException {
+    if (classpath.isEmpty()) {
+      String env = System.getenv("CLASSPATH");
+      classpath = (env == null || env.isEmpty()) ? "." : env;
+    }
+    ArrayList<URL> urls = new ArrayList<URL>();
+    for (String entry : classpath.split(File.pathSeparator, -1)) {
+      if (entry.isEmpty()) {
+        entry = ".";
+      }
+      if (entry.equals("*") || entry.endsWith(File.separator + "*")) {
+        File dir = new File(entry.substring(0, entry.length() - 1));
+        File[] jars = dir.listFiles((d, name) -> name.endsWith(".jar") || name.endsWith(".JAR"));
+        if (jars != null) {
+          for (File jar : jars) {
+            urls.add(jar.toURI().toURL());
+          }
+        }
+      } else {
+        urls.add(new File(entry).toURI().toURL());
+      }
+    }
+    return urls.toArray(new URL[urls.size()]);
+  }
+
+  /**
+   * Find the main method of a class, writing the same error messages as the java command to the
+   * (captured) standard error stream if there is no such class or method.
+   */
+  private static Method findMain(ClassLoader loader, String mainClass) {
+    Class<?> c;
+    try {
+      c = Class.forName(mainClass, false, loader);
+    } catch (ClassNotFoundException | LinkageError e) {
+      System.err.println("Error: Could not find or load main class " + mainClass);
+      System.err.println("Caused by: " + e);
+      return null;
+    }
+    try {
+      Method main = c.getMethod("main", String[].class);
+      if (Modifier.isStatic(main.getModifiers()) && main.getReturnType() == void.class) {
+        main.setAccessible(true); // the class itself need not be public
+        return main;
+      }
+    } catch (NoSuchMethodException e) {
+      // fall through to report the error
+    }
+    System.err.println(
+        "Error: Main method not found in class "
+            + mainClass
+            + ", please define the main method as:\n"
+            + "   public static void main(String[] args)\n"
+            + "or a JavaFX application class must extend javafx.application.Application");
+    return null;
+  }
+
+  /**
+   * Call a main method, treating any exception that it throws (other than an exit) as an uncaught
+   * exception in the main thread. The stack trace is trimmed to remove the frames that belong to
+   * the worker, so that it looks the same as it would if the program was run by the java command.
+   */
+  private static void invoke(Method main, String mainClass, String[] args) {
+    try {
+      main.invoke(null, (Object) args);
+    } catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if (!(cause instanceof Exit)) {
+        trim(cause, mainClass, new HashSet<Throwable>());
+        Thread t = Thread.currentThread();
+        t.getUncaughtExceptionHandler().uncaughtException(t, cause);
+      }
+    } catch (IllegalAccessException e) {
+      e.printStackTrace();
+    } finally {
+      synchronized (lock) {
+        lock.notifyAll();
+      }
+    }
+  }
+
+  /** Remove the frames below the main method from the stack traces of an exception. */
+  private static void trim(Throwable e, String mainClass, HashSet<Throwable> seen) {
+    if (e == null || !seen.add(e)) {
+      return;
+    }
+    StackTraceElement[] trace = e.getStackTrace();
+    for (int i = trace.length - 1; i >= 0; i--) {
+      if (trace[i].getClassName().equals(mainClass) && trace[i].getMethodName().equals("main")) {
+        StackTraceElement[] trimmed = new StackTraceElement[i + 1];
+        System.arraycopy(trace, 0, trimmed, 0, i + 1);
+        e.setStackTrace(trimmed);
+        break;
+      }
+    }
+    trim(e.getCause(), mainClass, seen);
+    for (Throwable s : e.getSuppressed()) {
+      trim(s, mainClass, seen);
+    }
+  }
+
+  /** The interval at which the threads of a run are checked, in milliseconds. */
+  private static final long POLL = 5;
+
+  /** Wait until every non-daemon thread in the group has finished, or the program has exited. */
+  private static void awaitThreads(ThreadGroup g) throws InterruptedException {
+    synchronized (lock) {
+      while (!exited && hasUserThreads(g)) {
+        lock.wait(POLL);
+      }
+    }
+  }
+
+  /** Determine whether there are any live, non-daemon threads in a thread group. */
+  private static boolean hasUserThreads(ThreadGroup g) {
+    Thread[] threads = new Thread[g.activeCount() + 8];
+    int n = g.enumerate(threads, true);
+    for (int i = 0; i < n; i++) {
+      if (!threads[i].isDaemon() && threads[i].isAlive()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Return the table of application shutdown hooks, or null if it cannot be accessed. (This
+   * requires java.lang to be opened to the worker.)
+   */
+  @SuppressWarnings("unchecked")
+  private static Map<Thread, Thread> hooks() {
+    try {
+      Field field = Class.forName("java.lang.ApplicationShutdownHooks").getDeclaredField("hooks");
+      field.setAccessible(true);
+      return (Map<Thread, Thread>) field.get(null);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /** Run (and then remove) any shutdown hooks that were registered during a run. */
+  private static void runHooks(Map<Thread, Thread> hooks, HashSet<Thread> oldHooks)
+      throws InterruptedException {
+    if (hooks == null) {
+      return;
+    }
+    ArrayList<Thread> added = new ArrayList<Thread>();
+    for (Thread hook : new ArrayList<Thread>(hooks.keySet())) {
+      if (!oldHooks.contains(hook) && Runtime.getRuntime().removeShutdownHook(hook)) {
+        added.add(hook);
+      }
+    }
+    for (Thread hook : added) {
+      hook.start();
+    }
+    for (Thread hook : added) {
+      hook.join();
+    }
+  }
+
+  /** Thrown in place of exiting when a program calls System.exit. */
+  private static class Exit extends SecurityException {
+    private static final long serialVersionUID = 1L;
+
+    Exit(int status) {
+      super("System.exit(" + status + ")");
+    }
+  }
+
+  /**
+   * A security manager that permits everything, except that a call to System.exit by one of the
+   * threads of a run finishes the run instead of exiting from the worker. (JDK 24 and later do
+   * not allow a security manager to be installed, so WorkerPool never starts workers there.)
+   */
+  @SuppressWarnings("removal")
+  private static class Guard extends SecurityManager {
+    public void checkPermission(Permission perm) {}
+
+    public void checkPermission(Permission perm, Object context) {}
+
+    public void checkExit(int status) {
+      ThreadGroup g = group;
+      ThreadGroup current = Thread.currentThread().getThreadGroup();
+      if (!halting && g != null && current != null && g.parentOf(current)) {
+        synchronized (lock) {
+          exited = true;
+          lock.notifyAll();
+        }
+        throw new Exit(status);
+      }
+    }
+  }
+
+  /**
+   * Captures one of the outputs of a program in a file. If a limit is set and the output exceeds
+   * it, then the output is truncated with a marker (the same as the one used by Tee), and the
+   * worker reports the overflow to tester and exits, stopping the program.
+   */
+  private static class Capture extends OutputStream {
+
+    /** The file in which the output is captured. */
+    private FileOutputStream out;
+
+    /** The maximum number of bytes that will be written (zero for no limit). */
+    private long limit;
+
+    /** The number of bytes that have been written. */
+    private long written = 0;
+
+    /** Default constructor. */
+    Capture(File file, long limit) throws IOException {
+      this.out = new FileOutputStream(file);
+      this.limit = limit;
+    }
+
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    public void write(byte[] buf, int off, int len) throws IOException {
+      synchronized (Capture.class) {
+        int keep = (limit > 0 && len > limit - written) ? (int) (limit - written) : len;
+        out.write(buf, off, keep);
+        written += keep;
+        if (keep < len) {
+          out.write(
+              ("\n*** output truncated after " + limit + " bytes ***\n")
+                  .getBytes(StandardCharsets.UTF_8));
+          out.close();
+          synchronized (reply) {
+            reply.writeInt(OVERFLOWED);
+            reply.flush();
+          }
+          halt();
+        }
+      }
+    }
+
+    public void close() throws IOException {
+      synchronized (Capture.class) {
+        out.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,185 @@
+/*
+    Copyright 2018 Mark P Jones, Portland State University
+
+    This file is part of tester.
+
+    tester is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    tester is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with tester.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package tester;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A pool of long-lived worker JVMs (see Worker) that run the main methods of Java programs under
+ * test. Workers are started when they are first needed, so there is never more than one for each
+ * test that is running at the same time, and are reused for later tests until they retire.
+ */
+class WorkerPool {
+
+  /**
+   * The version (feature release number) of the JVM that runs tester, which is also used to run
+   * the workers.
+   */
+  private static final int version = Runtime.version().version().get(0);
+
+  /**
+   * Set if java: tests should use the pool; cleared to run each test in a new JVM instead. Workers
+   * use a security manager to intercept calls to System.exit, and JDK 24 and later no longer allow
+   * one to be installed, so the pool is disabled from the start on those versions.
+   */
+  static boolean enabled = version < 24;
+
+  /** Workers that are ready for a new request. */
+  private static final ConcurrentLinkedDeque<Handle> idle = new ConcurrentLinkedDeque<Handle>();
+
+  /** Threads that wait for replies from workers (so that a wait can be given a time limit). */
+  private static final ExecutorService readers = Threads.unbounded("tester-worker-reply-");
+
+  /** The result of a run in which the program finished normally. */
+  static final int FINISHED = 0;
+
+  /** The result of a run that was stopped because an output exceeded its limit. */
+  static final int OVERFLOWED = 1;
+
+  /** The result of a run that did not finish within its time limit. */
+  static final int TIMEOUT = 2;
+
+  /** The result of a run that was lost because the worker stopped unexpectedly. */
+  static final int LOST = 3;
+
+  /** A connection to a single worker JVM. */
+  static class Handle {
+
+    /** The worker process. */
+    Process process;
+
+    /** The stream for sending requests to the worker. */
+    private DataOutputStream out;
+
+    /** The stream for reading replies from the worker. */
+    private DataInputStream in;
+
+    /** Set once the worker has finished a run. */
+    private boolean used = false;
+
+    /** Start a new worker JVM, using the same java command as tester itself. */
+    Handle() throws IOException {
+      ArrayList<String> cmd = new ArrayList<String>();
+      cmd.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+      if (version >= 12) {
+        // From JDK 12, a security manager can only be installed at run time if this is set:
+        cmd.add("-Djava.security.manager=allow");
+      }
+      cmd.add("--add-opens");
+      cmd.add("java.base/java.lang=ALL-UNNAMED");
+      cmd.add("-cp");
+      cmd.add(System.getProperty("java.class.path"));
+      cmd.add(Worker.class.getName());
+      ProcessBuilder pb = new ProcessBuilder(cmd);
+      if (Test.makeDirectory(Test.stateDir)) {
+        pb.redirectError(Redirect.appendTo(new File(Test.stateDir, "workers.log")));
+      } else {
+        pb.redirectError(Redirect.DISCARD);
+      }
+      process = pb.start();
+      out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+      in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+    }
+
+    /**
+     * Ask the worker to run the main method of a class, with its outputs written to the given
+     * files, waiting at most timeout milliseconds (unless the timeout is zero) for it to finish.
+     * The worker is returned to the pool afterwards if it is still usable, and is killed otherwise.
+     */
+    int run(
+        String classpath,
+        String mainClass,
+        List<String> args,
+        File actualOut,
+        File actualErr,
+        long limit,
+        long timeout)
+        throws InterruptedException {
+      int reply;
+      try {
+        out.writeUTF(classpath);
+        out.writeUTF(mainClass);
+        out.writeInt(args.size());
+        for (String arg : args) {
+          out.writeUTF(arg);
+        }
+        out.writeUTF(actualOut.getPath());
+        out.writeUTF(actualErr.getPath());
+        out.writeLong(limit);
+        out.flush();
+        Future<Integer> pending = readers.submit(in::readInt);
+        reply = (timeout > 0) ? pending.get(timeout, TimeUnit.MILLISECONDS) : pending.get();
+      } catch (TimeoutException e) {
+        TestCase.kill(process);
+        return TIMEOUT;
+      } catch (IOException | ExecutionException e) {
+        TestCase.kill(process);
+        if (!used) {
+          enabled = false; // workers cannot be started, so do not try again
+        }
+        return LOST;
+      }
+      used = true;
+      switch (reply) {
+        case Worker.READY:
+          idle.push(this);
+          return FINISHED;
+        case Worker.RETIRING:
+          TestCase.awaitExit(process.onExit(), -1);
+          return FINISHED;
+        case Worker.OVERFLOWED:
+          TestCase.awaitExit(process.onExit(), -1);
+          return OVERFLOWED;
+        default:
+          TestCase.kill(process);
+          return LOST;
+      }
+    }
+  }
+
+  /**
+   * Return an idle worker from the pool, starting a new one if necessary, or null if a worker
+   * cannot be started (in which case the pool is disabled).
+   */
+  static Handle acquire() {
+    Handle worker = idle.poll();
+    if (worker == null) {
+      try {
+        worker = new Handle();
+      } catch (IOException e) {
+        enabled = false;
+      }
+    }
+    return worker;
+  }
+}